@@ -0,0 +1,109 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Random;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+
+/**
+ * Decryption throughput (MB/s) of Decryptor for messages and attachments.
+ *
+ * The data is encrypted and signed by Encryptor. Run with "gradle bench",
+ * timings depend on the platform.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class DecryptionBenchmark {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int ROUNDS = 5;
+
+    private final PGPKeyPair mKeyPair;
+
+    private DecryptionBenchmark(PGPKeyPair keyPair) {
+        mKeyPair = keyPair;
+    }
+
+    public static void main(String[] args) throws PGPException, IOException {
+        RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
+        generator.init(new RSAKeyGenerationParameters(
+                BigInteger.valueOf(0x10001), new SecureRandom(), 2048, 12));
+        DecryptionBenchmark benchmark = new DecryptionBenchmark(new BcPGPKeyPair(
+                PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), new Date()));
+
+        // many small messages
+        benchmark.run("message", 4 * 1024, 256);
+        benchmark.run("attachment", 8 * 1024 * 1024, 1);
+    }
+
+    private void run(String name, int size, int count) throws PGPException, IOException {
+        byte[] plain = new byte[size];
+        // random data, compression would shrink anything else
+        new Random(size).nextBytes(plain);
+        byte[] encrypted = this.encrypt(plain);
+
+        // warm up
+        this.decrypt(encrypted);
+
+        double best = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int j = 0; j < count; j++)
+                bytes += this.decrypt(encrypted);
+            long nanos = System.nanoTime() - start;
+            best = Math.max(best, bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+        }
+
+        System.out.println(String.format("%s (%d bytes): %.2f MB/s", name, size, best));
+    }
+
+    private byte[] encrypt(byte[] plain) throws PGPException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Encryptor.encryptAndSign(new ByteArrayInputStream(plain), out,
+                mKeyPair.getPrivateKey(), mKeyPair.getPublicKey().getAlgorithm(),
+                "bench@kontalk.test",
+                Collections.singletonList(mKeyPair.getPublicKey()),
+                BUFFER_SIZE);
+        return out.toByteArray();
+    }
+
+    /** Decrypt and verify, return number of plain bytes. */
+    private int decrypt(byte[] encrypted) throws PGPException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encrypted.length);
+        Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                new ByteArrayInputStream(encrypted), out,
+                mKeyPair.getPrivateKey(), Optional.of(mKeyPair.getPublicKey()));
+        if (!result.errors.isEmpty() || result.signing != Coder.Signing.VERIFIED)
+            throw new IllegalStateException("decryption failed: " + result.errors);
+        return out.size();
+    }
+}
@@ -19,11 +19,13 @@
 package org.kontalk.client;
 
 import javax.net.ssl.SSLContext;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyManagementException;
@@ -38,7 +40,8 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -49,7 +52,9 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.HttpClientUtils;
-import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
@@ -73,6 +78,8 @@ public class HTTPFileClient {
     /** Message flags header for upload. */
     private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
 
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
     private final boolean mValidateCertificate;
@@ -107,8 +114,20 @@ public class HTTPFileClient {
      * @param base base directory in which the download is saved
      * @return absolute path of downloaded file, empty if download failed
      */
-    public synchronized Path download(URI url, Path base, ProgressListener listener)
+    public Path download(URI url, Path base, ProgressListener listener)
             throws KonException {
+        return this.download(url, base, listener, HTTPFileClient::saveToFile);
+    }
+
+    /**
+     * Download file to directory, the content is saved by the handler while
+     * it is received.
+     * @param url URL of file
+     * @param base base directory in which the download is saved
+     * @return absolute path of downloaded file, empty if download failed
+     */
+    public synchronized Path download(URI url, Path base, ProgressListener listener,
+            ContentHandler handler) throws KonException {
         if (mHTTPClient == null) {
             mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate);
             if (mHTTPClient == null)
@@ -176,10 +195,11 @@ public class HTTPFileClient {
             mCurrentListener.updateProgress(s < 0 ? -2 : 0);
 
             File outFile = MediaUtils.nonExistingFileForPath(Paths.get(base.toString(), filename));
-            try (FileOutputStream out = new FileOutputStream(outFile)){
-                CountingOutputStream cOut = new CountingOutputStream(out) {
+            Path outPath;
+            try (CountingInputStream cIn = new CountingInputStream(entity.getContent()) {
                     @Override
-                    protected synchronized void afterWrite(int n) {
+                    protected synchronized void afterRead(int n) {
+                        super.afterRead(n);
                         if (fileSize <= 0)
                             return;
 
@@ -187,8 +207,8 @@ public class HTTPFileClient {
                         mCurrentListener.updateProgress(
                                 (int) (this.getByteCount() /(fileSize * 1.0) * 100));
                     }
-                };
-                entity.writeTo(cOut);
+                }) {
+                outPath = handler.save(cIn, outFile.toPath());
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't download file", ex);
                 throw new KonException(KonException.Error.DOWNLOAD_WRITE);
@@ -197,7 +217,7 @@ public class HTTPFileClient {
             // release http connection resource
             EntityUtils.consumeQuietly(entity);
 
-            return outFile.toPath();
+            return outPath;
         } finally {
             HttpClientUtils.closeQuietly(response);
             mCurrentRequest = null;
@@ -210,7 +230,42 @@ public class HTTPFileClient {
      */
     public synchronized void upload(File file, URI uploadURL, String mime, boolean encrypted)
             throws KonException {
+        int code = this.put(new FileEntity(file), uploadURL, mime, encrypted);
+        if (code != HttpStatus.SC_OK) {
+            LOGGER.warning("unexpected response code: " + code);
+            throw new KonException(KonException.Error.UPLOAD_RESPONSE);
+        }
+    }
+
+    /**
+     * Upload data of unknown length using a PUT request with chunked
+     * transfer encoding. The data is produced while sending.
+     * @return false if the server rejected the chunked request (e.g. it requires a
+     * content length), nothing was uploaded
+     */
+    public synchronized boolean uploadChunked(ContentProducer producer, URI uploadURL,
+            String mime, boolean encrypted) throws KonException {
+        EntityTemplate entity = new EntityTemplate(producer);
+        entity.setChunked(true);
+        int code = this.put(entity, uploadURL, mime, encrypted);
+        switch (code) {
+            case HttpStatus.SC_BAD_REQUEST:
+            case HttpStatus.SC_FORBIDDEN:
+            case HttpStatus.SC_LENGTH_REQUIRED:
+            case HttpStatus.SC_REQUEST_TOO_LONG:
+                LOGGER.info("server does not accept chunked upload, code: " + code);
+                return false;
+        }
+        if (code != HttpStatus.SC_OK) {
+            LOGGER.warning("unexpected response code: " + code);
+            throw new KonException(KonException.Error.UPLOAD_RESPONSE);
+        }
+        return true;
+    }
 
+    /** Execute PUT request, return the response status code. */
+    private int put(HttpEntity entity, URI uploadURL, String mime, boolean encrypted)
+            throws KonException {
         if (mHTTPClient == null) {
             mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate);
             if (mHTTPClient == null)
@@ -222,29 +277,21 @@ public class HTTPFileClient {
         req.setHeader("Content-Type", mime);
         if (encrypted)
             req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+        req.setEntity(entity);
 
         LOGGER.config("to URL=" + uploadURL+ " ...");
 
         // execute request
         CloseableHttpResponse response = null;
         try {
-            try(FileInputStream in = new FileInputStream(file)) {
-                req.setEntity(new InputStreamEntity(in, file.length()));
-
-                mCurrentRequest = req;
-
-                //response = execute(currentRequest);
+            mCurrentRequest = req;
+            try {
                 response = mHTTPClient.execute(mCurrentRequest);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't upload file", ex);
                 throw new KonException(KonException.Error.UPLOAD_EXECUTE);
             }
-
-            int code = response.getStatusLine().getStatusCode();
-            if (code != HttpStatus.SC_OK) {
-                LOGGER.warning("unexpected response code: " + code);
-                throw new KonException(KonException.Error.UPLOAD_RESPONSE);
-            }
+            return response.getStatusLine().getStatusCode();
         } finally {
             HttpClientUtils.closeQuietly(response);
             mCurrentRequest = null;
@@ -300,7 +347,25 @@ public class HTTPFileClient {
         return "";
     }
 
+    /** Save content stream to file. */
+    public static Path saveToFile(InputStream content, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(file), FILE_BUFFER_SIZE)) {
+            IOUtils.copyLarge(content, out, new byte[FILE_BUFFER_SIZE]);
+        }
+        return file;
+    }
+
     public interface ProgressListener {
         void updateProgress(int percent);
     }
+
+    /** Saves downloaded content to a file. */
+    public interface ContentHandler {
+        /**
+         * Save the content stream to the given file.
+         * @return path of the saved file
+         */
+        Path save(InputStream content, Path file) throws IOException;
+    }
 }
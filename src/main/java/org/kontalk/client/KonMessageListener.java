@@ -162,16 +162,18 @@ final class KonMessageListener implements StanzaListener {
             return;
         }
 
-        // add message
-        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content);
-
-        // send a 'received' for a receipt request (XEP-0184)
+        // send a 'received' for a receipt request (XEP-0184), but not
+        // before the message is saved
+        Runnable onSaved = () -> {};
         DeliveryReceiptRequest request = DeliveryReceiptRequest.from(m);
         if (request != null && !ids.xmppID.isEmpty()) {
             Message received = new Message(m.getFrom(), Message.Type.chat);
             received.addExtension(new DeliveryReceipt(ids.xmppID));
-            mClient.sendPacket(received);
+            onSaved = () -> mClient.sendPacket(received);
         }
+
+        // add message
+        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content, onSaved);
     }
 
     private void processHeadlineMessage(Message m) {
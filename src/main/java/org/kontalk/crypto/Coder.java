@@ -19,7 +19,11 @@
 package org.kontalk.crypto;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.logging.Logger;
 
@@ -84,26 +88,29 @@ public final class Coder {
         //INVALID_TIMESTAMP,
     }
 
-    private static final HashMap<Contact, PGPCoderKey> KEY_MAP = new HashMap<>();
+    private static final PublicKeyCache KEY_CACHE = new PublicKeyCache();
 
     public static Optional<PGPCoderKey> contactkey(Contact contact) {
-        if (KEY_MAP.containsKey(contact)) {
-            PGPCoderKey key = KEY_MAP.get(contact);
-            if (key.fingerprint.equals(contact.getFingerprint()))
-                return Optional.of(key);
-        }
-
-        byte[] rawKey = contact.getKey();
-        if (rawKey.length != 0) {
-            PGPCoderKey key = PGPUtils.readPublicKey(rawKey).orElse(null);
-            if (key != null) {
-                KEY_MAP.put(contact, key);
-                return Optional.of(key);
-            }
-        }
-
-        LOGGER.warning("key not found for contact: "+contact);
-        return Optional.empty();
+        Optional<PGPCoderKey> key = KEY_CACHE.get(contact);
+        if (!key.isPresent())
+            LOGGER.warning("key not found for contact: "+contact);
+        return key;
+    }
+
+    /** Parse and cache the keys of all contacts in parallel. Long running. */
+    public static void warmUpKeyCache(Collection<Contact> contacts) {
+        long count = contacts.parallelStream()
+                .filter(Contact::hasKey)
+                .map(KEY_CACHE::get)
+                .filter(Optional::isPresent)
+                .count();
+        LOGGER.info("key cache warmed up, keys: "+count);
+    }
+
+    /** Log hits and misses of the key cache, e.g. on shutdown. */
+    public static void logKeyCacheStats() {
+        LOGGER.info("key cache hits: "+KEY_CACHE.getHits()
+                +", misses: "+KEY_CACHE.getMisses());
     }
 
     /**
@@ -123,6 +130,17 @@ public final class Coder {
         Decryptor.decryptAttachment(attachment, myKey, sender);
     }
 
+    /**
+     * Decrypt and verify an attachment stream and write the plain data to a
+     * file. The file and the encryption and signing status are set to the
+     * attachment. If decryption fails, the encrypted data is saved instead.
+     * @return path of the saved file, the extension may be corrected
+     */
+    public static Path decryptAttachment(PersonalKey myKey, InAttachment attachment, Contact sender,
+            InputStream encryptedIn, Path outPath) throws IOException {
+        return Decryptor.decryptAttachment(attachment, myKey, sender, encryptedIn, outPath);
+    }
+
     /**
      * Creates encrypted and signed message body.
      * Errors that may occur are saved to the message.
@@ -144,4 +162,19 @@ public final class Coder {
     public static Optional<File> encryptAttachment(PersonalKey myKey, OutMessage message, File file) {
         return new Encryptor(myKey, message).encryptAttachment(file);
     }
+
+    /**
+     * Create a writer for streaming an encrypted and signed attachment file
+     * without temporary file. Errors that may occur before writing (like
+     * missing keys) are saved to the message.
+     */
+    public static Optional<StreamWriter> attachmentWriter(PersonalKey myKey, OutMessage message,
+            File file) {
+        return new Encryptor(myKey, message).attachmentWriter(file);
+    }
+
+    /** Writes (encrypted) data to a stream. The stream is not closed. */
+    public interface StreamWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
@@ -18,14 +18,15 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.Arrays;
@@ -36,6 +37,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.http.util.EncodingUtils;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
@@ -72,7 +75,13 @@ import org.kontalk.util.XMPPParserUtils;
 final class Decryptor {
     private static final Logger LOGGER = Logger.getLogger(Decryptor.class.getName());
 
-    private static class DecryptionResult {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // block buffer for copying decrypted data, reused by each thread
+    private static final ThreadLocal<byte[]> BUFFER =
+            ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    static class DecryptionResult {
         final EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
         Coder.Signing signing = Coder.Signing.UNKNOWN;
     }
@@ -94,7 +103,8 @@ final class Decryptor {
         // if sender signing key not found -> can decrypt but not verify
         PGPUtils.PGPCoderKey senderKey = Coder.contactkey(message.getContact()).orElse(null);
         InputStream encryptedIn = new ByteArrayInputStream(encryptedData);
-        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        // compressed data, plain data is usually larger
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream(encryptedData.length * 2);
         DecryptionResult decResult;
         try {
             decResult = decryptAndVerify(encryptedIn,
@@ -152,18 +162,11 @@ final class Decryptor {
         }
         File outFile = MediaUtils.nonExistingFileForPath(inPath.getParent().resolve(outName));
 
-        // decrypt
-        // if sender signing key not found -> can decrypt but not verify
-        PGPUtils.PGPCoderKey senderKey = Coder.contactkey(sender).orElse(null);
         DecryptionResult decResult;
         File inFile = inPath.toFile();
-        try (FileInputStream encryptedIn = new FileInputStream(inFile);
-                FileOutputStream plainOut = new FileOutputStream(outFile)) {
-            decResult = decryptAndVerify(encryptedIn,
-                    plainOut,
-                    mMyKey.getPrivateEncryptionKey(),
-                    senderKey != null ? Optional.of(senderKey.signKey) :
-                            Optional.empty());
+        try (InputStream encryptedIn = new BufferedInputStream(
+                        Files.newInputStream(inPath), BUFFER_SIZE)) {
+            decResult = decryptToFile(encryptedIn, outFile.toPath(), mMyKey, sender);
         } catch (IOException | PGPException ex){
             LOGGER.log(Level.WARNING, "can't decrypt attachment", ex);
             attachment.setErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
@@ -172,28 +175,114 @@ final class Decryptor {
         attachment.setErrors(decResult.errors);
         attachment.setSigning(decResult.signing);
 
-        Path outPath = outFile.toPath();
+        setDecryptedFile(attachment, outFile.toPath());
+
+        boolean succ = inFile.delete();
+        if (!succ) {
+            LOGGER.warning("can't delete obsolete decrypted attachment file");
+        }
+    }
+
+    /**
+     * Decrypt and verify an attachment while it is downloaded. The plain data
+     * is written to the output file. The encrypted data is kept in a second
+     * file until decryption succeeded; if decryption fails, the encrypted file
+     * is set to the attachment (like for downloads without decryption) and
+     * the error is recorded, decryption can be retried later. If the data is
+     * not encrypted after all it is saved as plain file.
+     * @return path of the decrypted file or, if decryption failed, the
+     * encrypted file
+     */
+    static Path decryptAttachment(InAttachment attachment, PersonalKey myKey, Contact sender,
+            InputStream encryptedIn, Path outPath) throws IOException {
+        Path encryptedPath = MediaUtils.nonExistingFileForPath(outPath.resolveSibling(
+                AttachmentManager.ENCRYPT_PREFIX + outPath.getFileName())).toPath();
+
+        DecryptionResult decResult = null;
+        boolean received = false;
+        try (OutputStream encryptedOut = new BufferedOutputStream(
+                Files.newOutputStream(encryptedPath), BUFFER_SIZE)) {
+            try {
+                decResult = decryptToFile(new TeeInputStream(encryptedIn, encryptedOut),
+                        outPath, myKey, sender);
+            } catch (PGPException ex) {
+                LOGGER.log(Level.WARNING, "can't decrypt attachment", ex);
+            }
+            // rest of encrypted data, if decryption stopped early
+            IOUtils.copyLarge(encryptedIn, encryptedOut, new byte[BUFFER_SIZE]);
+            received = true;
+        } finally {
+            // no partial, unverified plain data
+            if (!received || !isDecrypted(decResult))
+                Files.deleteIfExists(outPath);
+            if (!received)
+                Files.deleteIfExists(encryptedPath);
+        }
+
+        if (!isDecrypted(decResult) && !PGPUtils.isEncryptedFile(encryptedPath)) {
+            // not PGP data after all, save as plain file
+            LOGGER.info("attachment is not encrypted");
+            Files.move(encryptedPath, outPath);
+            attachment.setFile(outPath.getFileName().toString(), false);
+            return outPath;
+        }
 
+        if (!isDecrypted(decResult)) {
+            attachment.setFile(encryptedPath.getFileName().toString(), true);
+            attachment.setErrors(decResult != null ?
+                    decResult.errors :
+                    EnumSet.of(Coder.Error.UNKNOWN_ERROR));
+            return encryptedPath;
+        }
+
+        Files.delete(encryptedPath);
+        attachment.setFile(outPath.getFileName().toString(), true);
+        attachment.setErrors(decResult.errors);
+        attachment.setSigning(decResult.signing);
+
+        return setDecryptedFile(attachment, outPath);
+    }
+
+    /** Return if plain data was written (but maybe not verified). */
+    private static boolean isDecrypted(DecryptionResult decResult) {
+        return decResult != null &&
+                !decResult.errors.contains(Coder.Error.INVALID_DATA) &&
+                !decResult.errors.contains(Coder.Error.INVALID_PRIVATE_KEY);
+    }
+
+    private static DecryptionResult decryptToFile(InputStream encryptedIn, Path outPath,
+            PersonalKey myKey, Contact sender) throws IOException, PGPException {
+        // if sender signing key not found -> can decrypt but not verify
+        PGPUtils.PGPCoderKey senderKey = Coder.contactkey(sender).orElse(null);
+        try (OutputStream plainOut = new BufferedOutputStream(
+                        Files.newOutputStream(outPath), BUFFER_SIZE)) {
+            return decryptAndVerify(encryptedIn,
+                    plainOut,
+                    myKey.getPrivateEncryptionKey(),
+                    senderKey != null ? Optional.of(senderKey.signKey) :
+                            Optional.empty());
+        }
+    }
+
+    private static Path setDecryptedFile(InAttachment attachment, Path outPath) {
         // security check for correct extension
+        String filename = outPath.getFileName().toString();
         String ext = MediaUtils.extensionForMIME(MediaUtils.mimeForFile(outPath));
-        if (!ext.equals(FilenameUtils.getExtension(outFile.getName()))) {
-            boolean succ = !MediaUtils.renameFile(outPath, outFile.getName() + "." + ext)
-                    .toString().isEmpty();
-            if (succ)
+        if (!ext.equals(FilenameUtils.getExtension(filename))) {
+            Path renamed = MediaUtils.renameFile(outPath, filename + "." + ext);
+            if (!renamed.toString().isEmpty()) {
+                outPath = renamed;
                 LOGGER.info("corrected extension: " + ext);
+            }
         }
 
-        attachment.setDecryptedFile(outPath.toFile().getName());
+        attachment.setDecryptedFile(outPath.getFileName().toString());
         LOGGER.info("success, decrypted file: "+outPath);
-
-        boolean succ = inFile.delete();
-        if (!succ) {
-            LOGGER.warning("can't delete obsolete decrypted attachment file");
-        }
+        return outPath;
     }
 
     /** Decrypt, verify and write input stream data to output stream. */
-    private static DecryptionResult decryptAndVerify(
+    static DecryptionResult decryptAndVerify(
             InputStream encryptedInput, OutputStream plainOutput,
             PGPPrivateKey myKey, Optional<PGPPublicKey> senderSigningKey)
             throws PGPException, IOException {
@@ -282,11 +371,12 @@ final class Decryptor {
 
         PGPLiteralData ld = (PGPLiteralData) object;
         InputStream unc = ld.getInputStream();
-        int ch;
-        while ((ch = unc.read()) >= 0) {
-            plainOutput.write(ch);
+        byte[] buf = BUFFER.get();
+        int len;
+        while ((len = unc.read(buf)) >= 0) {
+            plainOutput.write(buf, 0, len);
             if (ops != null)
-                ops.update((byte) ch);
+                ops.update(buf, 0, len);
         }
 
         if (ops != null) {
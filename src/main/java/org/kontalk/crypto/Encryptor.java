@@ -18,15 +18,16 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.EnumSet;
@@ -45,6 +46,8 @@ import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
@@ -66,6 +69,8 @@ final class Encryptor {
 
     // should always be a power of 2
     private static final int BUFFER_SIZE = 1 << 8;
+    // for attachment files
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
 
     private final PersonalKey myKey;
     private final OutMessage message;
@@ -125,7 +130,7 @@ final class Encryptor {
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            encryptAndSign(in, out, myKey, receiverKeys);
+            encryptAndSign(in, out, myKey, receiverKeys, BUFFER_SIZE);
         } catch(IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt data", ex);
             message.setSecurityErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
@@ -136,8 +141,8 @@ final class Encryptor {
     }
 
     Optional<File> encryptAttachment(File file) {
-        List<PGPUtils.PGPCoderKey> receiverKeys = this.loadKeysOrNull();
-        if (receiverKeys == null)
+        Coder.StreamWriter writer = this.attachmentWriter(file).orElse(null);
+        if (writer == null)
             return Optional.empty();
 
         File tempFile;
@@ -148,10 +153,10 @@ final class Encryptor {
             return Optional.empty();
         }
 
-        try (FileInputStream in = new FileInputStream(file);
-                FileOutputStream out = new FileOutputStream(tempFile)) {
-            encryptAndSign(in, out, myKey, receiverKeys);
-        } catch (IOException | PGPException ex) {
+        try (OutputStream out = new BufferedOutputStream(
+                        Files.newOutputStream(tempFile.toPath()), FILE_BUFFER_SIZE)) {
+            writer.writeTo(out);
+        } catch (IOException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt attachment", ex);
             return Optional.empty();
         }
@@ -160,6 +165,25 @@ final class Encryptor {
         return Optional.of(tempFile);
     }
 
+    /**
+     * Create a writer that encrypts the file on the fly, memory usage is
+     * bounded by the buffer size.
+     */
+    Optional<Coder.StreamWriter> attachmentWriter(File file) {
+        List<PGPUtils.PGPCoderKey> receiverKeys = this.loadKeysOrNull();
+        if (receiverKeys == null)
+            return Optional.empty();
+
+        return Optional.of(out -> {
+            try (InputStream in = new BufferedInputStream(
+                    Files.newInputStream(file.toPath()), FILE_BUFFER_SIZE)) {
+                encryptAndSign(in, out, myKey, receiverKeys, FILE_BUFFER_SIZE);
+            } catch (PGPException ex) {
+                throw new IOException("can't encrypt attachment", ex);
+            }
+        });
+    }
+
     private List<PGPUtils.PGPCoderKey> loadKeysOrNull() {
         List<Contact> contacts = message.getTransmissions().stream()
                 .map(Transmission::getContact)
@@ -174,13 +198,25 @@ final class Encryptor {
         return receiverKeys;
     }
 
+    private static void encryptAndSign(
+            InputStream plainInput, OutputStream encryptedOutput,
+            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys, int bufferSize)
+            throws IOException, PGPException {
+        encryptAndSign(plainInput, encryptedOutput,
+                myKey.getPrivateSigningKey(), myKey.getSigningAlgorithm(), myKey.getUserId(),
+                receiverKeys.stream().map(key -> key.encryptKey).collect(Collectors.toList()),
+                bufferSize);
+    }
+
     /**
      * Encrypt, sign and write input stream data to output stream.
      * Input and output stream are closed.
+     * @param bufferSize size of packet and copy buffers, a power of 2
      */
-    private static void encryptAndSign(
+    static void encryptAndSign(
             InputStream plainInput, OutputStream encryptedOutput,
-            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys)
+            PGPPrivateKey signKey, int signAlgorithm, String userID,
+            List<PGPPublicKey> encryptKeys, int bufferSize)
             throws IOException, PGPException {
 
         // setup data encryptor & generator
@@ -190,23 +226,22 @@ final class Encryptor {
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        receiverKeys.forEach(key ->
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key.encryptKey)));
+        encryptKeys.forEach(key ->
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key)));
 
-        OutputStream encryptedOut = encGen.open(encryptedOutput, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(encryptedOutput, new byte[bufferSize]);
 
         // setup compressed data generator
         PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[bufferSize]);
 
         // setup signature generator
-        int algo = myKey.getSigningAlgorithm();
         PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
-                new BcPGPContentSignerBuilder(algo, HashAlgorithmTags.SHA256));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, myKey.getPrivateSigningKey());
+                new BcPGPContentSignerBuilder(signAlgorithm, HashAlgorithmTags.SHA256));
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, signKey);
 
         PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, myKey.getUserId());
+        spGen.setSignerUserID(false, userID);
         sigGen.setUnhashedSubpackets(spGen.generate());
 
         sigGen.generateOnePassVersion(false).encode(compressedOut);
@@ -218,12 +253,12 @@ final class Encryptor {
             PGPLiteralData.BINARY,
             "",
             new Date(),
-            new byte[BUFFER_SIZE]);
+            new byte[bufferSize]);
 
         // read the "in" stream, compress, encrypt and write to the "out" stream
         // this must be done if clear data is bigger than the buffer size
         // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
+        byte[] buf = new byte[bufferSize];
         int len;
         while ((len = plainInput.read(buf)) > 0) {
             literalOut.write(buf, 0, len);
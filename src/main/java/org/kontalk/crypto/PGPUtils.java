@@ -40,6 +40,7 @@ import java.util.regex.Pattern;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPEncryptedData;
@@ -331,6 +332,51 @@ public final class PGPUtils {
             StringUtils.defaultString(matcher.group(5))};
     }
 
+    /**
+     * Return if the stream starts with encrypted data. The header of the first
+     * packet and the start of its body (version or marker) are checked, the
+     * stream must support mark and is reset.
+     */
+    public static boolean isEncryptedStream(InputStream input) throws IOException {
+        byte[] head = new byte[16];
+        input.mark(head.length);
+        int len = IOUtils.read(input, head);
+        input.reset();
+        if (len < 2 || (head[0] & 0x80) == 0)
+            return false;
+
+        int header = head[0] & 0xff;
+        int tag;
+        int lengthBytes;
+        if ((header & 0x40) != 0) {
+            // new format
+            tag = header & 0x3f;
+            int first = head[1] & 0xff;
+            lengthBytes = first < 192 ? 1 : first < 224 ? 2 : first == 255 ? 5 : 1;
+        } else {
+            // old format
+            tag = (header >> 2) & 0x0f;
+            int lengthType = header & 0x03;
+            lengthBytes = lengthType == 3 ? 0 : 1 << lengthType;
+        }
+        int body = 1 + lengthBytes;
+        if (len <= body)
+            return false;
+
+        int version = head[body] & 0xff;
+        switch (tag) {
+            case PacketTags.PUBLIC_KEY_ENC_SESSION:
+                return version == 3 || version == 6;
+            case PacketTags.SYMMETRIC_KEY_ENC_SESSION:
+                return version >= 4 && version <= 6;
+            case PacketTags.MARKER:
+                return len >= body + 3 &&
+                        head[body] == 'P' && head[body + 1] == 'G' && head[body + 2] == 'P';
+            default:
+                return false;
+        }
+    }
+
     public static boolean isEncryptedFile(Path file) {
         try (FileInputStream input = new FileInputStream(file.toFile())) {
             PGPObjectFactory factory = new PGPObjectFactory(input, FP_CALC);
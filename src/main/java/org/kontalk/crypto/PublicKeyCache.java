@@ -0,0 +1,90 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kontalk.crypto.PGPUtils.PGPCoderKey;
+import org.kontalk.model.Contact;
+
+/**
+ * Thread-safe cache of parsed public keys, keyed by fingerprint.
+ *
+ * Least recently used keys are evicted when the cache is full. Parsing is
+ * done outside the lock, the same key may be parsed twice concurrently.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class PublicKeyCache {
+
+    private static final int MAX_SIZE = 256;
+
+    // guarded by itself; access order for LRU
+    private final Map<String, PGPCoderKey> mKeys =
+            new LinkedHashMap<String, PGPCoderKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PGPCoderKey> eldest) {
+                    return this.size() > MAX_SIZE;
+                }
+            };
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /** Get the parsed current key of a contact, if the contact has a valid key. */
+    Optional<PGPCoderKey> get(Contact contact) {
+        String fingerprint = contact.getFingerprint();
+        if (fingerprint.isEmpty())
+            return Optional.empty();
+
+        PGPCoderKey key;
+        synchronized (mKeys) {
+            key = mKeys.get(fingerprint);
+        }
+        if (key != null) {
+            mHits.incrementAndGet();
+            return Optional.of(key);
+        }
+
+        mMisses.incrementAndGet();
+        byte[] rawKey = contact.getKey();
+        if (rawKey.length == 0)
+            return Optional.empty();
+
+        key = PGPUtils.readPublicKey(rawKey).orElse(null);
+        if (key == null)
+            return Optional.empty();
+
+        synchronized (mKeys) {
+            mKeys.put(key.fingerprint, key);
+        }
+        return Optional.of(key);
+    }
+
+    long getHits() {
+        return mHits.get();
+    }
+
+    long getMisses() {
+        return mMisses.get();
+    }
+}
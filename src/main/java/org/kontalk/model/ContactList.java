@@ -19,17 +19,22 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import org.kontalk.misc.JID;
+import org.kontalk.model.message.KonMessage;
 import org.kontalk.persistence.Database;
 
 /**
@@ -39,20 +44,34 @@ import org.kontalk.persistence.Database;
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public final class ContactList extends Observable {
+public final class ContactList extends Observable implements Observer {
     private static final Logger LOGGER = Logger.getLogger(ContactList.class.getName());
 
     private enum ViewChange { MODIFIED }
 
-    private final Map<JID, Contact> mJIDMap =
-            Collections.synchronizedMap(new HashMap<JID, Contact>());
+    private final Map<JID, Contact> mJIDMap = new ConcurrentHashMap<>();
+    // all contacts by database ID, including deleted
+    private final Map<Integer, Contact> mIDMap = new ConcurrentHashMap<>();
+
+    // (not deleted) contacts by key fingerprint and the reverse, updated on key change
+    private final Map<String, Contact> mFingerprintMap = new ConcurrentHashMap<>();
+    private final Map<Contact, String> mFingerprints = new ConcurrentHashMap<>();
+
+    // incremented on every change that affects snapshots
+    private final AtomicLong mVersion = new AtomicLong();
+    private volatile Snapshot mSnapshot = null;
 
     ContactList() {}
 
+    /**
+     * Load all contacts from database.
+     * @return all contacts by database ID, including deleted contacts; the map
+     * is updated when new contacts are created
+     */
     Map<Integer, Contact> load() {
         assert mJIDMap.isEmpty();
 
-        Map<Integer, Contact> contactMap = new HashMap<>();
+        Map<Integer, Contact> contactMap = mIDMap;
 
         Database db = Model.database();
         try (ResultSet resultSet = db.execSelectAll(Contact.TABLE)) {
@@ -64,14 +83,18 @@ public final class ContactList extends Observable {
                     LOGGER.warning("contacts with equal JIDs: " + jid);
                     continue;
                 }
-                if (!contact.isDeleted())
+                if (!contact.isDeleted()) {
                     mJIDMap.put(jid, contact);
+                    this.indexKey(contact);
+                }
 
                 contactMap.put(contact.getID(), contact);
+                contact.addObserver(this);
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load contacts from db", ex);
         }
+        mVersion.incrementAndGet();
         this.changed(null);
 
         return contactMap;
@@ -89,6 +112,9 @@ public final class ContactList extends Observable {
             return Optional.empty();
 
         mJIDMap.put(newContact.getJID(), newContact);
+        mIDMap.put(newContact.getID(), newContact);
+        newContact.addObserver(this);
+        mVersion.incrementAndGet();
 
         this.changed(ViewChange.MODIFIED);
         return Optional.of(newContact);
@@ -113,15 +139,35 @@ public final class ContactList extends Observable {
         return this.get(myJID);
     }
 
+    /** Get all contacts; the returned set is immutable and shared. */
     public Set<Contact> getAll(boolean withMe, boolean blocked) {
-        synchronized(mJIDMap) {
-            return Collections.unmodifiableSet(
-                    mJIDMap.values().stream()
-                            .filter(c ->
-                                    (blocked || !c.isBlocked()) &&
-                                    (withMe || !c.isMe()))
-                            .collect(Collectors.toSet()));
-        }
+        Snapshot snapshot = this.snapshot();
+        return withMe ?
+                (blocked ? snapshot.mAll : snapshot.mNotBlocked) :
+                (blocked ? snapshot.mWithoutMe : snapshot.mNotBlockedWithoutMe);
+    }
+
+    /** Get a (not deleted) contact by database ID. */
+    public Optional<Contact> get(int id) {
+        return Optional.ofNullable(this.snapshot().mByID.get(id));
+    }
+
+    /** Get a (not deleted) contact by the fingerprint of its public key. */
+    public Optional<Contact> getByFingerprint(String fingerprint) {
+        return Optional.ofNullable(mFingerprintMap.get(fingerprint.toLowerCase()));
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = mSnapshot;
+        // version must be read before contacts
+        long version = mVersion.get();
+        JID me = Model.getUserJID();
+        if (snapshot != null && snapshot.mVersion == version && snapshot.mMe.equals(me))
+            return snapshot;
+
+        snapshot = new Snapshot(version, me, mJIDMap.values());
+        mSnapshot = snapshot;
+        return snapshot;
     }
 
     public void delete(Contact contact) {
@@ -129,6 +175,8 @@ public final class ContactList extends Observable {
         if (!removed) {
             LOGGER.warning("can't find contact "+contact);
         }
+        this.unindexKey(contact);
+        mVersion.incrementAndGet();
 
         contact.setDeleted();
 
@@ -154,6 +202,7 @@ public final class ContactList extends Observable {
         mJIDMap.remove(contact.getJID());
 
         contact.setJID(jid);
+        mVersion.incrementAndGet();
 
         return true;
     }
@@ -176,4 +225,93 @@ public final class ContactList extends Observable {
         this.setChanged();
         this.notifyObservers(change);
     }
+
+    private void indexKey(Contact contact) {
+        String fingerprint = contact.getFingerprint();
+        String old = fingerprint.isEmpty() ?
+                mFingerprints.remove(contact) :
+                mFingerprints.put(contact, fingerprint);
+        if (old != null && !old.equals(fingerprint))
+            mFingerprintMap.remove(old, contact);
+        if (!fingerprint.isEmpty())
+            mFingerprintMap.put(fingerprint, contact);
+    }
+
+    private void unindexKey(Contact contact) {
+        String old = mFingerprints.remove(contact);
+        if (old != null)
+            mFingerprintMap.remove(old, contact);
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+        if (!(o instanceof Contact))
+            return;
+
+        // called by Contact.setKey()
+        if (arg == Contact.ViewChange.KEY && !((Contact) o).isDeleted())
+            this.indexKey((Contact) o);
+
+        // contact names and JIDs are in message search index
+        if (arg == Contact.ViewChange.NAME || arg == Contact.ViewChange.JID)
+            this.updateSearchIndex((Contact) o);
+
+        // changes of contacts that are filtered
+        if (arg == Contact.ViewChange.BLOCKING ||
+                arg == Contact.ViewChange.JID ||
+                arg == Contact.ViewChange.DELETED)
+            mVersion.incrementAndGet();
+    }
+
+    private void updateSearchIndex(Contact contact) {
+        Database db = Model.database();
+        if (!db.isSearchEnabled())
+            return;
+
+        Thread indexThread = new Thread(
+                () -> KonMessage.updateSearchIndex(db, contact, mIDMap),
+                "Search Index Update");
+        indexThread.setDaemon(true);
+        indexThread.start();
+    }
+
+    // immutable, all filter combinations and indexes of one version
+    private static final class Snapshot {
+        private final long mVersion;
+        private final JID mMe;
+        private final Set<Contact> mAll;
+        private final Set<Contact> mWithoutMe;
+        private final Set<Contact> mNotBlocked;
+        private final Set<Contact> mNotBlockedWithoutMe;
+        private final Map<Integer, Contact> mByID;
+
+        private Snapshot(long version, JID me, Collection<Contact> contacts) {
+            mVersion = version;
+            mMe = me;
+
+            Set<Contact> all = new HashSet<>();
+            Set<Contact> withoutMe = new HashSet<>();
+            Set<Contact> notBlocked = new HashSet<>();
+            Set<Contact> notBlockedWithoutMe = new HashSet<>();
+            Map<Integer, Contact> byID = new HashMap<>();
+            for (Contact contact : contacts) {
+                boolean isMe = me.isValid() && contact.getJID().equals(me);
+                boolean blocked = contact.isBlocked();
+                all.add(contact);
+                if (!isMe)
+                    withoutMe.add(contact);
+                if (!blocked)
+                    notBlocked.add(contact);
+                if (!isMe && !blocked)
+                    notBlockedWithoutMe.add(contact);
+
+                byID.put(contact.getID(), contact);
+            }
+            mAll = Collections.unmodifiableSet(all);
+            mWithoutMe = Collections.unmodifiableSet(withoutMe);
+            mNotBlocked = Collections.unmodifiableSet(notBlocked);
+            mNotBlockedWithoutMe = Collections.unmodifiableSet(notBlockedWithoutMe);
+            mByID = byID;
+        }
+    }
 }
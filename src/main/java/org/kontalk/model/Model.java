@@ -28,6 +28,7 @@ import org.kontalk.misc.JID;
 import org.kontalk.model.chat.Chat;
 import org.kontalk.model.chat.ChatList;
 import org.kontalk.model.message.InMessage;
+import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.MessageContent;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.model.message.ProtoMessage;
@@ -86,6 +87,29 @@ public final class Model {
         // order matters!
         Map<Integer, Contact> contactMap = mContactList.load();
         mChatList.load(contactMap);
+
+        // convert and index messages from older versions in background
+        Thread indexThread = new Thread("Message Migration") {
+            @Override
+            public void run() {
+                KonMessage.migrateContent(DATABASE);
+                KonMessage.updateSearchIndex(DATABASE, contactMap);
+            }
+        };
+        indexThread.setDaemon(true);
+        indexThread.start();
+    }
+
+    /**
+     * Search for text in all messages, including messages not loaded.
+     * @return IDs of matching messages mapped to their chat ID, or nothing
+     * if full-text search is not available
+     */
+    public Optional<Map<Integer, Integer>> searchMessages(String search) {
+        if (!DATABASE.isSearchEnabled())
+            return Optional.empty();
+
+        return Optional.of(KonMessage.search(DATABASE, search));
     }
 
     public void setUserJID(JID jid) {
@@ -22,13 +22,14 @@ import java.awt.Color;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +63,7 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     public static final String COL_SUBJ = "subject";
     public static final String COL_READ = "read";
     public static final String COL_VIEW_SET = "view_settings";
+    public static final String COL_UNREAD = "unread";
     public static final String SCHEMA = "( " +
             Database.SQL_ID +
             // optional XMPP chat ID
@@ -73,29 +75,41 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             // view settings in JSON format
             COL_VIEW_SET+" TEXT NOT NULL, " +
             // optional group id in JSON format
-            COL_GD+" TEXT " +
+            COL_GD+" TEXT, " +
+            // number of unread incoming messages
+            COL_UNREAD+" INTEGER NOT NULL DEFAULT 0 " +
             ")";
 
+    // flags for columns changed since last save
+    static final int DIRTY_SUBJ = 1;
+    static final int DIRTY_READ = 1 << 1;
+    static final int DIRTY_VIEW_SET = 1 << 2;
+
     final int mID;
     private final ChatMessages mMessages;
 
-    private boolean mRead;
+    // number of unread messages, guarded by this
+    private int mUnread;
     private boolean mDeleted = false;
 
     private ViewSettings mViewSettings;
 
+    // DIRTY_* flags of unsaved columns
+    private int mDirty = 0;
+
     Chat(String xmppID, String subject, GroupMetaData gData) {
         mMessages = new ChatMessages();
-        mRead = true;
+        mUnread = 0;
         mViewSettings = ViewSettings.createDefault();
 
         // insert
         List<Object> values = Arrays.asList(
                 Database.setString(xmppID),
                 Database.setString(subject),
-                mRead,
+                true,
                 mViewSettings.toJSONString(),
-                Database.setString(gData == null ? "" : gData.toJSON()));
+                Database.setString(gData == null ? "" : gData.toJSON()),
+                mUnread);
         mID = Model.database().execInsert(TABLE, values);
         if (mID < 1) {
             LOGGER.warning("could not insert chat");
@@ -103,15 +117,16 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     }
 
     // used when loading from database
-    Chat(int id, boolean read, String jsonViewSettings) {
+    Chat(int id, int unread, String jsonViewSettings) {
         mID = id;
         mMessages = new ChatMessages();
-        mRead = read;
+        mUnread = unread;
         mViewSettings = new ViewSettings(jsonViewSettings);
     }
 
-    private void loadMessages(Database db, Map<Integer, Contact> contactMap) {
-        mMessages.load(db, this, contactMap);
+    private void loadMessages(Database db, Map<Integer, Contact> contactMap,
+            ForkJoinPool pool) {
+        mMessages.load(db, this, contactMap, pool);
     }
 
     public ChatMessages getMessages() {
@@ -123,8 +138,11 @@ public abstract class Chat extends Observable implements Observer, Searchable {
 
         boolean added = mMessages.add(message);
         if (added) {
-            if (message.isInMessage() && mRead) {
-                mRead = false;
+            if (message.isInMessage()) {
+                synchronized (this) {
+                    mUnread++;
+                    mDirty |= DIRTY_READ;
+                }
                 this.save();
                 this.changed(ViewChange.READ);
             }
@@ -137,15 +155,23 @@ public abstract class Chat extends Observable implements Observer, Searchable {
         return mID;
     }
 
-    public boolean isRead() {
-        return mRead;
+    public synchronized boolean isRead() {
+        return mUnread == 0;
+    }
+
+    /** Number of unread incoming messages. */
+    public synchronized int getUnreadCount() {
+        return mUnread;
     }
 
     public void setRead() {
-        if (mRead)
-            return;
+        synchronized (this) {
+            if (mUnread == 0)
+                return;
 
-        mRead = true;
+            mUnread = 0;
+            mDirty |= DIRTY_READ;
+        }
         this.save();
         this.changed(ViewChange.READ);
     }
@@ -159,6 +185,7 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             return;
 
         mViewSettings = settings;
+        this.markDirty(DIRTY_VIEW_SET);
         this.save();
         this.changed(ViewChange.VIEW_SETTINGS);
     }
@@ -202,12 +229,30 @@ public abstract class Chat extends Observable implements Observer, Searchable {
 
     abstract void save();
 
-    // not saving members here
+    synchronized void markDirty(int flags) {
+        mDirty |= flags;
+    }
+
+    // not saving members here; only columns marked as changed
     void save(String subject) {
-        Map<String, Object> set = new HashMap<>();
-        set.put(COL_SUBJ, Database.setString(subject));
-        set.put(COL_READ, mRead);
-        set.put(COL_VIEW_SET, mViewSettings.toJSONString());
+        int dirty;
+        synchronized (this) {
+            dirty = mDirty;
+            mDirty = 0;
+        }
+        if (dirty == 0)
+            return;
+
+        Map<String, Object> set = new LinkedHashMap<>();
+        if ((dirty & DIRTY_SUBJ) != 0)
+            set.put(COL_SUBJ, Database.setString(subject));
+        if ((dirty & DIRTY_READ) != 0) {
+            int unread = this.getUnreadCount();
+            set.put(COL_READ, unread == 0);
+            set.put(COL_UNREAD, unread);
+        }
+        if ((dirty & DIRTY_VIEW_SET) != 0)
+            set.put(COL_VIEW_SET, mViewSettings.toJSONString());
 
         Database db = Model.database();
         db.execUpdate(TABLE, set, mID);
@@ -215,12 +260,12 @@ public abstract class Chat extends Observable implements Observer, Searchable {
 
     void delete() {
         // messages
-        boolean succ = mMessages.getAll().stream().allMatch(KonMessage::delete);
+        Database db = Model.database();
+        boolean succ = mMessages.delete(db);
         if (!succ)
             return;
 
         // members
-        Database db = Model.database();
         succ = this.getAllMembers().stream().allMatch(m -> m.delete(db));
         if (!succ)
             return;
@@ -259,8 +304,12 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             return this.getSubject().toLowerCase().contains(search);
     }
 
-    static Optional<Chat> load(Database db, ResultSet rs, Map<Integer, Contact> contactMap)
-            throws SQLException {
+    /**
+     * Load chat from a result set row. Messages are decoded on the pool and
+     * must be added with ChatMessages.finishLoad().
+     */
+    static Optional<Chat> load(Database db, ResultSet rs, Map<Integer, Contact> contactMap,
+            ForkJoinPool pool) throws SQLException {
         int id = rs.getInt("_id");
 
         String jsonGD = Database.getString(rs, Chat.COL_GD);
@@ -276,22 +325,26 @@ public abstract class Chat extends Observable implements Observer, Searchable {
         String subject = Database.getString(rs, Chat.COL_SUBJ);
 
         boolean read = rs.getBoolean(Chat.COL_READ);
+        int unread = rs.getInt(Chat.COL_UNREAD);
+        if (!read && unread == 0)
+            // unknown
+            unread = 1;
 
         String jsonViewSettings = Database.getString(rs,
                 Chat.COL_VIEW_SET);
 
         Chat chat;
         if (gData != null) {
-            chat = GroupChat.create(id, members, gData, subject, read, jsonViewSettings);
+            chat = GroupChat.create(id, members, gData, subject, unread, jsonViewSettings);
         } else {
             if (members.size() != 1) {
                 LOGGER.warning("not one contact for single chat, id="+id);
                 return Optional.empty();
             }
-            chat = new SingleChat(id, members.get(0), xmppID, read, jsonViewSettings);
+            chat = new SingleChat(id, members.get(0), xmppID, unread, jsonViewSettings);
         }
 
-        chat.loadMessages(db, contactMap);
+        chat.loadMessages(db, contactMap, pool);
         return Optional.of(chat);
     }
 
@@ -20,6 +20,8 @@ package org.kontalk.model.chat;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,10 +31,15 @@ import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kontalk.model.Contact;
 import org.kontalk.model.Model;
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.model.message.OutMessage;
 import org.kontalk.persistence.Database;
 
 /**
@@ -47,25 +54,44 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
     }
 
     private final Set<Chat> mChats = Collections.synchronizedSet(new HashSet<Chat>());
+    // lookup indexes, updated together with chat set
+    private final Map<Map.Entry<Contact, String>, SingleChat> mSingleChats =
+            new ConcurrentHashMap<>();
+    private final Map<GroupMetaData, GroupChat> mGroupChats = new ConcurrentHashMap<>();
+    // outgoing messages in memory of all chats by XMPP ID; newest if not unique
+    private final Map<String, OutMessage> mOutIndex = new ConcurrentHashMap<>();
+    // pending outgoing messages of all chats
+    private final Outbox mOutbox = new Outbox();
 
-    private boolean mUnread = false;
+    // unread counts of chats with unread messages and their sum
+    private final Map<Chat, Integer> mUnreadCounts = new ConcurrentHashMap<>();
+    private final AtomicInteger mUnreadTotal = new AtomicInteger();
 
     public void load(Map<Integer, Contact> contactMap) {
         assert mChats.isEmpty();
 
+        // rows are read here, messages are decoded in parallel meanwhile
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        List<Chat> chats = new ArrayList<>();
         Database db = Model.database();
         try (ResultSet chatRS = db.execSelectAll(Chat.TABLE)) {
             while (chatRS.next()) {
-                Chat chat = Chat.load(db, chatRS, contactMap).orElse(null);
+                Chat chat = Chat.load(db, chatRS, contactMap, pool).orElse(null);
                 if (chat == null)
                     continue;
-                this.putSilent(chat);
-
-                mUnread |= !chat.isRead();
+                chats.add(chat);
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load chats from db", ex);
         }
+
+        // merge in database order
+        for (Chat chat : chats) {
+            chat.getMessages().finishLoad();
+            this.putSilent(chat);
+
+            this.updateUnread(chat);
+        }
         this.changed(ViewChange.MODIFIED);
     }
 
@@ -75,23 +101,49 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
 
     /** Get single chat with contact and XMPPID. */
     public Optional<SingleChat> get(Contact contact, String xmmpThreadID) {
-        synchronized(mChats) {
-            return mChats.stream()
-                    .filter(chat -> chat instanceof SingleChat)
-                    .map(chat -> (SingleChat) chat)
-                    .filter(chat -> chat.getXMPPID().equals(xmmpThreadID)
-                            && chat.getMember().getContact().equals(contact))
-                    .findFirst();
-        }
+        return Optional.ofNullable(mSingleChats.get(key(contact, xmmpThreadID)));
     }
 
     public Optional<GroupChat> get(GroupMetaData gData) {
-        synchronized(mChats) {
-            return mChats.stream()
-                    .filter(chat -> chat instanceof GroupChat)
-                    .map(chat -> (GroupChat) chat)
-                    .filter(chat -> chat.getGroupData().equals(gData))
-                    .findFirst();
+        return Optional.ofNullable(mGroupChats.get(gData));
+    }
+
+    /** Pending outgoing messages of all chats. */
+    public Outbox outbox() {
+        return mOutbox;
+    }
+
+    /** Get outgoing message in memory by XMPP ID, in constant time. */
+    public Optional<OutMessage> getOutMessage(String xmppID) {
+        return Optional.ofNullable(mOutIndex.get(xmppID));
+    }
+
+    /**
+     * Find the newest outgoing message with an XMPP ID in any chat. If not in
+     * memory, the message is loaded from the database (but not added to its
+     * chat) with one indexed lookup.
+     */
+    public Optional<OutMessage> findOutMessage(String xmppID) {
+        Optional<OutMessage> optM = this.getOutMessage(xmppID);
+        if (optM.isPresent() || xmppID.isEmpty())
+            return optM;
+
+        Map.Entry<Integer, Integer> ids =
+                KonMessage.findOutgoing(Model.database(), xmppID).orElse(null);
+        if (ids == null)
+            return Optional.empty();
+
+        Chat chat = this.getByID(ids.getKey()).orElse(null);
+        if (chat == null) {
+            LOGGER.warning("can't find chat of message, chat ID: "+ids.getKey());
+            return Optional.empty();
+        }
+        return chat.getMessages().loadOutgoing(ids.getValue());
+    }
+
+    private Optional<Chat> getByID(int id) {
+        synchronized (mChats) {
+            return mChats.stream().filter(chat -> chat.getID() == id).findFirst();
         }
     }
 
@@ -134,6 +186,14 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
             LOGGER.warning("chat already in chat list: "+chat);
             return;
         }
+        if (chat instanceof SingleChat) {
+            SingleChat singleChat = (SingleChat) chat;
+            mSingleChats.put(key(singleChat), singleChat);
+        } else if (chat instanceof GroupChat) {
+            GroupChat groupChat = (GroupChat) chat;
+            mGroupChats.put(groupChat.getGroupData(), groupChat);
+        }
+        chat.getMessages().setIndexes(mOutIndex, mOutbox);
         chat.addObserver(this);
     }
 
@@ -151,14 +211,43 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
             LOGGER.warning("can't delete chat, not found: "+chat);
             return;
         }
+        if (chat instanceof SingleChat) {
+            mSingleChats.remove(key((SingleChat) chat), chat);
+        } else if (chat instanceof GroupChat) {
+            mGroupChats.remove(((GroupChat) chat).getGroupData(), chat);
+        }
+        Integer unread = mUnreadCounts.remove(chat);
         chat.delete();
         chat.deleteObservers();
         this.changed(ViewChange.MODIFIED);
+        if (unread != null) {
+            mUnreadTotal.addAndGet(-unread);
+            this.changed(ViewChange.UNREAD);
+        }
     }
 
     /** Return if any chat is unread. */
     public boolean isUnread() {
-        return mUnread;
+        return mUnreadTotal.get() > 0;
+    }
+
+    /** Number of unread messages in all chats. */
+    public int getUnreadCount() {
+        return mUnreadTotal.get();
+    }
+
+    /** Update total with unread count of one chat. Return if total changed. */
+    private boolean updateUnread(Chat chat) {
+        int delta;
+        synchronized (chat) {
+            int count = chat.getUnreadCount();
+            Integer old = count > 0 ? mUnreadCounts.put(chat, count) : mUnreadCounts.remove(chat);
+            delta = count - (old == null ? 0 : old);
+        }
+        if (delta == 0)
+            return false;
+        mUnreadTotal.addAndGet(delta);
+        return true;
     }
 
     private void changed(ViewChange change) {
@@ -171,20 +260,16 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
         if (arg != Chat.ViewChange.READ || !(o instanceof Chat))
             return;
 
-        boolean unread = !((Chat) o).isRead();
-        if (mUnread == unread)
-            return;
+        if (this.updateUnread((Chat) o))
+            this.changed(ViewChange.UNREAD);
+    }
 
-        if (!unread) {
-            // one chat was read, are there still any unread chats?
-            synchronized(mChats) {
-                if (mChats.stream().anyMatch(chat -> !chat.isRead()))
-                    return;
-            }
-        }
+    private static Map.Entry<Contact, String> key(SingleChat chat) {
+        return key(chat.getMember().getContact(), chat.getXMPPID());
+    }
 
-        mUnread = !mUnread;
-        this.changed(ViewChange.UNREAD);
+    private static Map.Entry<Contact, String> key(Contact contact, String xmppThreadID) {
+        return new AbstractMap.SimpleImmutableEntry<>(contact, xmppThreadID);
     }
 
     @Override
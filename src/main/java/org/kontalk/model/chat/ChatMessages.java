@@ -18,22 +18,28 @@
 
 package org.kontalk.model.chat;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
+import java.util.Observable;
 import java.util.Optional;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import org.kontalk.model.Contact;
+import org.kontalk.model.Model;
 import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.persistence.Database;
@@ -41,104 +47,410 @@ import org.kontalk.persistence.Database;
 /**
  * All messages of a chat.
  *
+ * Only a window of the newest messages (and all pending messages) is held in
+ * memory, older messages are paged in from the database on demand.
+ *
+ * Changes of single messages are forwarded to the observers of this list
+ * (with the message change as argument), messages have no observers.
+ *
+ * Message content is only held strongly while the chat is active (shown);
+ * otherwise it can be garbage collected and is reloaded when accessed.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public final class ChatMessages {
+public final class ChatMessages extends Observable {
     private static final Logger LOGGER = Logger.getLogger(ChatMessages.class.getName());
 
+    /** Number of newest messages held in memory; also the size of one page. */
+    public static final int WINDOW_SIZE = 100;
+
     private static final Comparator<KonMessage> MESSAGE_COMPARATOR =
             (KonMessage o1, KonMessage o2) -> {
                 int dateOrder = o1.getDate().compareTo(o2.getDate());
                 return dateOrder != 0 ? dateOrder : Integer.compare(o1.getID(), o2.getID());
             };
 
-    // comparator inconsistent with .equals(); using one set for ordering...
-    private final NavigableSet<KonMessage> mSortedSet =
-        Collections.synchronizedNavigableSet(new TreeSet<>(MESSAGE_COMPARATOR));
-    // ... and one set for .contains()
-    private final Set<KonMessage> mContainsSet =
-            Collections.synchronizedSet(new HashSet<>());
+    // all messages in memory, ordered by (date, ID); lock-free reads
+    private final ConcurrentNavigableMap<Key, KonMessage> mMessages =
+            new ConcurrentSkipListMap<>();
+    // size of map, counting a skip list is linear
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // predecessors of messages at the window start, loaded from database
+    private final Map<Integer, Optional<KonMessage>> mPredecessorCache =
+            new ConcurrentHashMap<>();
+
+    // set if loaded from database
+    private Chat mChat = null;
+    private Map<Integer, Contact> mContactMap = null;
+    // oldest message of the continuous range of messages in memory;
+    // null if all messages are in memory
+    private volatile KonMessage mWindowStart = null;
+    // if the chat is shown and message content should stay in memory
+    private volatile boolean mActive = false;
+    // outgoing messages in memory of all chats by XMPP ID, owned by chat list
+    private volatile Map<String, OutMessage> mOutIndex = null;
+    // pending outgoing messages of all chats, owned by chat list
+    private volatile Outbox mOutbox = null;
+
+    // messages decoded on a pool while loading, see finishLoad()
+    private List<ForkJoinTask<KonMessage>> mLoadingNewest = Collections.emptyList();
+    private List<ForkJoinTask<KonMessage>> mLoadingPending = Collections.emptyList();
 
     ChatMessages() {
     }
 
-    void load(Database db, Chat chat, Map<Integer, Contact> contactMap) {
-        try (ResultSet messageRS = db.execSelectWhereInsecure(KonMessage.TABLE,
-                KonMessage.COL_CHAT_ID + " == " + chat.getID())) {
-            while (messageRS.next()) {
-                KonMessage message = KonMessage.load(messageRS, chat, contactMap);
+    /**
+     * Read messages from database; decoding is done on the pool.
+     * Messages are added with finishLoad().
+     */
+    void load(Database db, Chat chat, Map<Integer, Contact> contactMap, ForkJoinPool pool) {
+        mChat = chat;
+        mContactMap = contactMap;
+
+        // pending messages must always be in memory
+        String wherePending = KonMessage.COL_STATUS + " == " +
+                KonMessage.Status.PENDING.ordinal();
+        try {
+            mLoadingNewest = KonMessage.load(db, chat, contactMap, "", WINDOW_SIZE, pool);
+            mLoadingPending = KonMessage.load(db, chat, contactMap, wherePending, 0, pool);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load messages from db", ex);
+        }
+    }
+
+    /** Wait for messages decoded on the pool and add them. */
+    void finishLoad() {
+        // more messages are available if the page is full, counting broken ones
+        boolean full = mLoadingNewest.size() == WINDOW_SIZE;
+        List<KonMessage> newest = join(mLoadingNewest);
+        newest.forEach(this::addSilent);
+        if (full && !newest.isEmpty())
+            mWindowStart = newest.get(0);
+
+        // some may be already added
+        join(mLoadingPending).forEach(this::put);
+
+        // not shown yet
+        mMessages.values().forEach(KonMessage::releaseContent);
+
+        mLoadingNewest = Collections.emptyList();
+        mLoadingPending = Collections.emptyList();
+    }
+
+    private static List<KonMessage> join(List<ForkJoinTask<KonMessage>> tasks) {
+        List<KonMessage> messages = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<KonMessage> task : tasks) {
+            KonMessage message;
+            try {
+                message = task.join();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't create message", ex);
+                continue;
+            }
+            if (message.getTransmissions().isEmpty())
+                // ignore broken message
+                continue;
+            messages.add(message);
+        }
+        messages.sort(MESSAGE_COMPARATOR);
+        return messages;
+    }
+
+    private List<KonMessage> loadFromDB(String where, int limit) {
+        List<KonMessage> messages = new ArrayList<>();
+        this.loadFromDB(where, limit, messages);
+        return messages;
+    }
+
+    /**
+     * Load messages from database, ordered.
+     * @return number of rows read, including broken messages
+     */
+    private int loadFromDB(String where, int limit, List<KonMessage> messages) {
+        int rows = 0;
+        try {
+            rows = KonMessage.load(Model.database(), mChat, mContactMap, where, limit, message -> {
                 if (message.getTransmissions().isEmpty())
                     // ignore broken message
-                    continue;
-                this.addSilent(message);
-            }
+                    return;
+                messages.add(message);
+            });
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load messages from db", ex);
         }
+        messages.sort(MESSAGE_COMPARATOR);
+        return rows;
     }
 
     /**
      * Add message to chat without notifying other components.
      */
     boolean add(KonMessage message) {
-        return this.addSilent(message);
+        boolean added = this.addSilent(message);
+        if (added && !mActive)
+            message.releaseContent();
+        return added;
     }
 
     private boolean addSilent(KonMessage message) {
-        boolean added = mContainsSet.add(message);
-        if (!added) {
+        boolean added = this.put(message);
+        if (!added)
             LOGGER.warning("message already in chat: " + message);
+        return added;
+    }
+
+    private boolean put(KonMessage message) {
+        if (mMessages.putIfAbsent(new Key(message), message) != null)
             return false;
-        }
-        mSortedSet.add(message);
+        mSize.incrementAndGet();
+        index(message);
         return true;
     }
 
+    private void remove(KonMessage message) {
+        if (!mMessages.remove(new Key(message), message))
+            return;
+        mSize.decrementAndGet();
+        unindex(message);
+    }
+
+    /** Get a snapshot of all messages currently in memory, ordered. */
     public Set<KonMessage> getAll() {
-        return Collections.unmodifiableSet(mSortedSet);
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mMessages.values()));
+    }
+
+    /** Return if there are older messages in the database that are not loaded. */
+    public boolean hasOlder() {
+        return mWindowStart != null;
     }
 
-    /** Get all outgoing messages with status "PENDING" for this chat. */
-    public SortedSet<OutMessage> getPending() {
-        synchronized(mSortedSet) {
-            return mSortedSet.stream()
-                    .filter(m -> m.getStatus() == KonMessage.Status.PENDING
-                            && m instanceof OutMessage)
-                    .map(m -> (OutMessage) m)
-                    .collect(Collectors.toCollection(() -> new TreeSet<>(MESSAGE_COMPARATOR)));
+    /**
+     * Load the next page of older messages from the database. Reads
+     * committed messages only; should not be called on the EDT.
+     * @return the number of loaded messages
+     */
+    public synchronized int loadOlder() {
+        KonMessage windowStart = mWindowStart;
+        if (windowStart == null)
+            return 0;
+
+        List<KonMessage> older = new ArrayList<>();
+        int rows = this.loadFromDB(KonMessage.whereBefore(windowStart), WINDOW_SIZE, older);
+        int added = 0;
+        for (KonMessage message : older) {
+            // pending messages are already loaded
+            if (this.put(message))
+                added++;
         }
+        if (rows == WINDOW_SIZE && older.isEmpty())
+            LOGGER.warning("page of broken messages, not loading older messages");
+        mWindowStart = rows < WINDOW_SIZE || older.isEmpty() ? null : older.get(0);
+        mPredecessorCache.clear();
+        return added;
     }
 
-    /** Get the newest (i.e. last received) outgoing message. */
-    public Optional<OutMessage> getLast(String xmppID) {
-        synchronized(mSortedSet) {
-            return mSortedSet.descendingSet().stream()
-                    .filter(m -> m.getXMPPID().equals(xmppID) && m instanceof OutMessage)
-                    .map(m -> (OutMessage) m).findFirst();
+    /**
+     * Remove all but the newest messages from memory. Pending messages are
+     * kept.
+     */
+    public synchronized void trim() {
+        if (mContactMap == null)
+            // not loaded from database, nothing can be reloaded
+            return;
+
+        if (mSize.get() <= WINDOW_SIZE)
+            return;
+
+        Iterator<KonMessage> it = mMessages.descendingMap().values().iterator();
+        KonMessage windowStart = null;
+        for (int i = 0; i < WINDOW_SIZE && it.hasNext(); i++)
+            windowStart = it.next();
+
+        // new messages are always added after window start
+        while (it.hasNext()) {
+            KonMessage message = it.next();
+            if (message.getStatus() == KonMessage.Status.PENDING)
+                continue;
+            this.remove(message);
         }
+        mWindowStart = windowStart;
+        mPredecessorCache.clear();
+    }
+
+    /**
+     * Get the newest (i.e. last received) outgoing message.
+     * If not in memory, the message is loaded from the database (but not
+     * added to this chat).
+     */
+    public Optional<OutMessage> getLast(String xmppID) {
+        Optional<OutMessage> optM = mMessages.descendingMap().values().stream()
+                .filter(m -> m.getXMPPID().equals(xmppID) && m instanceof OutMessage)
+                .map(m -> (OutMessage) m).findFirst();
+        if (optM.isPresent() || !this.hasOlder() || xmppID.isEmpty())
+            return optM;
+
+        int id = KonMessage.findOutgoing(Model.database(), mChat, xmppID);
+        return id > 0 ? this.loadOutgoing(id) : Optional.empty();
+    }
+
+    /** Load an outgoing message from the database, it is not added to this chat. */
+    Optional<OutMessage> loadOutgoing(int id) {
+        return this.loadFromDB("_id == " + id, 1).stream()
+                .filter(m -> m instanceof OutMessage)
+                .map(m -> (OutMessage) m).findFirst();
     }
 
     /** Get the last created message. */
     public Optional<KonMessage> getLast() {
-        return mSortedSet.isEmpty() ?
-                Optional.empty() :
-                Optional.of(mSortedSet.last());
+        Map.Entry<Key, KonMessage> last = mMessages.lastEntry();
+        return last == null ? Optional.empty() : Optional.of(last.getValue());
     }
 
+    /** Return if an equal message is in this chat (including database). */
     public boolean contains(KonMessage message) {
-        return mContainsSet.contains(message);
+        if (mMessages.get(new Key(message)) == message)
+            return true;
+
+        // equal messages have the same XMPP ID
+        String xmppID = message.getXMPPID();
+        if (xmppID.isEmpty())
+            return false;
+
+        // duplicates are usually recent
+        if (mMessages.descendingMap().values().stream()
+                .anyMatch(m -> m.getXMPPID().equals(xmppID) && m.equals(message)))
+            return true;
+
+        if (!this.hasOlder())
+            return false;
+
+        return message.hasDuplicate(Model.database());
+    }
+
+    /**
+     * Called by a message of this chat when it changed. Observers are
+     * notified with the changed message.
+     */
+    public void changed(KonMessage message, KonMessage.ViewChange change) {
+        Outbox outbox = mOutbox;
+        if (change == KonMessage.ViewChange.STATUS && message instanceof OutMessage &&
+                outbox != null)
+            outbox.onStatusChange((OutMessage) message);
+
+        this.setChanged();
+        this.notifyObservers(message);
+    }
+
+    public boolean isActive() {
+        return mActive;
     }
 
+    /**
+     * Set if the chat is currently active. The content of all messages is
+     * released when it becomes inactive.
+     */
+    public void setActive(boolean active) {
+        mActive = active;
+        if (!active)
+            mMessages.values().forEach(KonMessage::releaseContent);
+    }
+
+    /** Number of messages in memory. */
     public int size() {
-        return mSortedSet.size();
+        return mSize.get();
     }
 
     public boolean isEmpty() {
-        return mSortedSet.isEmpty();
+        return mMessages.isEmpty();
     }
 
     public Optional<KonMessage> getPredecessor(KonMessage message) {
-        SortedSet<KonMessage> headSet = mSortedSet.headSet(message);
-        return headSet.isEmpty() ? Optional.empty() : Optional.of(headSet.last());
+        KonMessage windowStart = mWindowStart;
+        Map.Entry<Key, KonMessage> lower = mMessages.lowerEntry(new Key(message));
+        if (windowStart == null || MESSAGE_COMPARATOR.compare(message, windowStart) > 0)
+            return Optional.ofNullable(lower).map(Map.Entry::getValue);
+
+        // at window start, predecessor is not in memory
+        return mPredecessorCache.computeIfAbsent(message.getID(), id ->
+                this.loadFromDB(KonMessage.whereBefore(message), 1).stream().findFirst());
+    }
+
+    /** Delete all messages of this chat (including database). Not commited! */
+    boolean delete(Database db) {
+        mMessages.values().forEach(this::unindex);
+        return KonMessage.deleteAll(db, mChat);
+    }
+
+    /**
+     * Set the index of outgoing messages and the outbox of the chat list this
+     * chat belongs to. Messages already in memory are added.
+     */
+    void setIndexes(Map<String, OutMessage> outIndex, Outbox outbox) {
+        mOutIndex = outIndex;
+        mOutbox = outbox;
+        mMessages.values().forEach(this::index);
+    }
+
+    private void index(KonMessage message) {
+        if (!(message instanceof OutMessage))
+            return;
+
+        Outbox outbox = mOutbox;
+        if (outbox != null)
+            outbox.add((OutMessage) message);
+        this.indexOut(message);
+    }
+
+    private void indexOut(KonMessage message) {
+        Map<String, OutMessage> outIndex = mOutIndex;
+        String xmppID = message.getXMPPID();
+        if (outIndex == null || !(message instanceof OutMessage) || xmppID.isEmpty())
+            return;
+
+        outIndex.merge(xmppID, (OutMessage) message, (old, m) ->
+                MESSAGE_COMPARATOR.compare(old, m) >= 0 ? old : m);
+    }
+
+    // primitive (date, ID) composite, same order as MESSAGE_COMPARATOR
+    private static final class Key implements Comparable<Key> {
+        private final long mDate;
+        private final int mID;
+
+        private Key(KonMessage message) {
+            mDate = message.getDate().getTime();
+            mID = message.getID();
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int dateOrder = Long.compare(mDate, o.mDate);
+            return dateOrder != 0 ? dateOrder : Integer.compare(mID, o.mID);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key oKey = (Key) o;
+            return mDate == oKey.mDate && mID == oKey.mID;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mDate) * 31 + mID;
+        }
+    }
+
+    private void unindex(KonMessage message) {
+        if (!(message instanceof OutMessage))
+            return;
+
+        Map<String, OutMessage> outIndex = mOutIndex;
+        if (outIndex != null)
+            outIndex.remove(message.getXMPPID(), message);
+        Outbox outbox = mOutbox;
+        if (outbox != null)
+            outbox.remove((OutMessage) message);
     }
 }
@@ -64,10 +64,10 @@ public abstract class GroupChat<D extends GroupMetaData> extends Chat {
             List<Member> members,
             D gData,
             String subject,
-            boolean read,
+            int unread,
             String jsonViewSettings
             ) {
-        super(id, read, jsonViewSettings);
+        super(id, unread, jsonViewSettings);
 
         mGroupData = gData;
         mSubject = subject;
@@ -158,7 +158,7 @@ public abstract class GroupChat<D extends GroupMetaData> extends Chat {
                 LOGGER.warning("(proto)member not in chat: "+pm);
                 continue;
             }
-            member.getContact().deleteObservers();
+            member.getContact().deleteObserver(this);
             boolean succ = mMemberSet.remove(member);
             if (!succ) {
                 LOGGER.warning("member not in chat: "+member);
@@ -171,6 +171,7 @@ public abstract class GroupChat<D extends GroupMetaData> extends Chat {
 
         if (!subject.isEmpty() && !subject.equals(mSubject)) {
             mSubject = subject;
+            this.markDirty(DIRTY_SUBJ);
             this.save();
         }
 
@@ -250,8 +251,8 @@ public abstract class GroupChat<D extends GroupMetaData> extends Chat {
         }
 
         private KonGroupChat(int id, List<Member> members,
-                KonGroupData gData, String subject, boolean read, String jsonViewSettings) {
-            super(id, members, gData, subject, read, jsonViewSettings);
+                KonGroupData gData, String subject, int unread, String jsonViewSettings) {
+            super(id, members, gData, subject, unread, jsonViewSettings);
         }
     }
 
@@ -261,16 +262,16 @@ public abstract class GroupChat<D extends GroupMetaData> extends Chat {
         }
 
         private MUCChat(int id, List<Member> members, MUCData gData,
-                String subject, boolean read, String jsonViewSettings) {
-            super(id, members, gData, subject, read, jsonViewSettings);
+                String subject, int unread, String jsonViewSettings) {
+            super(id, members, gData, subject, unread, jsonViewSettings);
         }
     }
 
     static GroupChat create(int id, List<Member> members,
-            GroupMetaData gData, String subject, boolean read, String jsonViewSettings) {
+            GroupMetaData gData, String subject, int unread, String jsonViewSettings) {
         return (gData instanceof KonGroupData) ?
-                new KonGroupChat(id, members, (KonGroupData) gData, subject, read, jsonViewSettings) :
-                new MUCChat(id, members, (MUCData) gData, subject, read, jsonViewSettings);
+                new KonGroupChat(id, members, (KonGroupData) gData, subject, unread, jsonViewSettings) :
+                new MUCChat(id, members, (MUCData) gData, subject, unread, jsonViewSettings);
     }
 
     static GroupChat create(List<ProtoMember> members, GroupMetaData gData, String subject) {
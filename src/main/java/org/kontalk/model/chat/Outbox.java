@@ -0,0 +1,77 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model.chat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.model.message.OutMessage;
+
+/**
+ * All pending outgoing messages of all chats, ordered by creation.
+ *
+ * Owned by the chat list. Pending messages are always loaded from the
+ * database (using the status index) and added by the chat message lists. A
+ * message is added or removed when its status changes to or from pending
+ * (reported by the message list).
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class Outbox {
+
+    private final NavigableSet<OutMessage> mQueue;
+
+    Outbox() {
+        mQueue = new ConcurrentSkipListSet<>(Comparator
+                .comparing(OutMessage::getDate)
+                .thenComparingInt(OutMessage::getID));
+    }
+
+    void add(OutMessage message) {
+        if (message.getStatus() != KonMessage.Status.PENDING)
+            return;
+
+        mQueue.add(message);
+    }
+
+    void remove(OutMessage message) {
+        mQueue.remove(message);
+    }
+
+    /** Get all pending messages, oldest first. */
+    public List<OutMessage> getAll() {
+        return new ArrayList<>(mQueue);
+    }
+
+    public boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    void onStatusChange(OutMessage message) {
+        if (message.getStatus() == KonMessage.Status.PENDING)
+            // e.g. retried by user
+            this.add(message);
+        else
+            this.remove(message);
+    }
+}
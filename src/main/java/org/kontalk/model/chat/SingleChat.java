@@ -52,9 +52,9 @@ public final class SingleChat extends Chat {
             int id,
             Member member,
             String xmppID,
-            boolean read,
+            int unread,
             String jsonViewSettings) {
-        super(id, read, jsonViewSettings);
+        super(id, unread, jsonViewSettings);
 
         mMember = member;
         mXMPPID = xmppID;
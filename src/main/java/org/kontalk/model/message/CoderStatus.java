@@ -20,6 +20,7 @@ package org.kontalk.model.message;
 
 import java.util.EnumSet;
 import org.kontalk.crypto.Coder;
+import org.kontalk.util.EncodingUtils;
 
 /**
  * The encoding/decoding status of a an item (text, attachment, ...) in a
@@ -28,24 +29,34 @@ import org.kontalk.crypto.Coder;
  */
 public class CoderStatus {
 
-    private Coder.Encryption mEncryption;
-    private Coder.Signing mSigning;
-    private final EnumSet<Coder.Error> mErrors;
+    // packed into one int: encryption (2 bits), signing (2 bits), error set
+    private static final int SIGNING_SHIFT = 2;
+    private static final int ERRORS_SHIFT = 4;
+    private static final int FIELD_MASK = 0b11;
+
+    private static final Coder.Encryption[] ENCRYPTIONS = Coder.Encryption.values();
+    private static final Coder.Signing[] SIGNINGS = Coder.Signing.values();
+
+    private int mBits;
 
     public CoderStatus(Coder.Encryption encryption,
             Coder.Signing signing,
             EnumSet<Coder.Error> errors) {
-        this.mEncryption = encryption;
-        this.mSigning = signing;
-        this.mErrors = errors;
+        mBits = pack(encryption, signing, EncodingUtils.enumSetToInt(errors));
+    }
+
+    private static int pack(Coder.Encryption encryption, Coder.Signing signing, int errors) {
+        return encryption.ordinal() |
+                signing.ordinal() << SIGNING_SHIFT |
+                errors << ERRORS_SHIFT;
     }
 
     public Coder.Encryption getEncryption() {
-        return mEncryption;
+        return ENCRYPTIONS[mBits & FIELD_MASK];
     }
 
     public boolean isEncrypted() {
-        return mEncryption == Coder.Encryption.ENCRYPTED;
+        return this.getEncryption() == Coder.Encryption.ENCRYPTED;
     }
 
     /**
@@ -53,48 +64,55 @@ public class CoderStatus {
      * @return true if message is (or was) encrypted, else false
      */
     public boolean isSecure() {
-        return mEncryption == Coder.Encryption.ENCRYPTED ||
-                mEncryption == Coder.Encryption.DECRYPTED;
+        Coder.Encryption encryption = this.getEncryption();
+        return encryption == Coder.Encryption.ENCRYPTED ||
+                encryption == Coder.Encryption.DECRYPTED;
     }
 
     void setDecrypted() {
-        assert mEncryption == Coder.Encryption.ENCRYPTED;
-        mEncryption = Coder.Encryption.DECRYPTED;
+        assert this.getEncryption() == Coder.Encryption.ENCRYPTED;
+        mBits = pack(Coder.Encryption.DECRYPTED, this.getSigning(), this.getErrorBits());
     }
 
     public Coder.Signing getSigning() {
-        return mSigning;
+        return SIGNINGS[mBits >>> SIGNING_SHIFT & FIELD_MASK];
     }
 
     public void setSigning(Coder.Signing signing) {
-        if (signing == mSigning)
+        Coder.Signing current = this.getSigning();
+        if (signing == current)
             return;
 
         // check for locical errors in coder
         if (signing == Coder.Signing.NOT)
-            assert mSigning == Coder.Signing.UNKNOWN;
+            assert current == Coder.Signing.UNKNOWN;
         if (signing == Coder.Signing.SIGNED)
-            assert mSigning == Coder.Signing.UNKNOWN;
+            assert current == Coder.Signing.UNKNOWN;
         if (signing == Coder.Signing.VERIFIED)
-            assert mSigning == Coder.Signing.SIGNED ||
-                    mSigning == Coder.Signing.UNKNOWN;
+            assert current == Coder.Signing.SIGNED ||
+                    current == Coder.Signing.UNKNOWN;
 
-        mSigning = signing;
+        mBits = pack(this.getEncryption(), signing, this.getErrorBits());
     }
 
     public EnumSet<Coder.Error> getErrors() {
-        // better return a copy
-        return mErrors.clone();
+        // always a new set
+        return EncodingUtils.intToEnumSet(Coder.Error.class, this.getErrorBits());
+    }
+
+    private int getErrorBits() {
+        return mBits >>> ERRORS_SHIFT;
     }
 
     public void setSecurityErrors(EnumSet<Coder.Error> errors) {
-        mErrors.clear();
-        mErrors.addAll(errors);
+        mBits = pack(this.getEncryption(), this.getSigning(),
+                EncodingUtils.enumSetToInt(errors));
     }
 
     @Override
     public String toString() {
-        return "CSTAT:encr="+mEncryption+",sign="+mSigning+",err="+mErrors;
+        return "CSTAT:encr="+this.getEncryption()+",sign="+this.getSigning()
+                +",err="+this.getErrors();
     }
 
     static CoderStatus createInsecure() {
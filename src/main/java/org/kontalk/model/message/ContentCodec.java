@@ -0,0 +1,141 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model.message;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Binary encoding of message content for the database.
+ *
+ * Format: a zero marker byte and a version byte, followed by tagged fields:
+ * tag (1 byte), payload length (4 bytes) and payload. Unknown tags are
+ * skipped. Legacy rows are JSON and always start with '{'.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ContentCodec {
+
+    private static final byte MARKER = 0;
+    static final byte VERSION = 1;
+
+    private ContentCodec() {}
+
+    /** Return if data is not in binary format (but legacy JSON). */
+    static boolean isLegacy(byte[] data) {
+        return data.length == 0 || data[0] != MARKER;
+    }
+
+    static final class Writer {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(64);
+
+        void putString(int tag, String value) {
+            if (!value.isEmpty())
+                this.putBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putNumber(int tag, long value) {
+            this.putBytes(tag, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+        }
+
+        void putNested(int tag, Consumer<Writer> nested) {
+            Writer writer = new Writer();
+            nested.accept(writer);
+            this.putBytes(tag, writer.mOut.toByteArray());
+        }
+
+        void putBytes(int tag, byte[] value) {
+            mOut.write(tag);
+            mOut.write(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array(),
+                    0, Integer.BYTES);
+            mOut.write(value, 0, value.length);
+        }
+
+        /** Encoded data including header. */
+        byte[] toBytes() {
+            byte[] fields = mOut.toByteArray();
+            byte[] data = new byte[fields.length + 2];
+            data[0] = MARKER;
+            data[1] = VERSION;
+            System.arraycopy(fields, 0, data, 2, fields.length);
+            return data;
+        }
+    }
+
+    static final class Reader {
+        private final ByteBuffer mBuffer;
+        private int mTag = -1;
+        private ByteBuffer mValue = null;
+
+        private Reader(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Create a reader for encoded data including header.
+         * @throws IllegalArgumentException if data is not in a known binary format
+         */
+        static Reader of(byte[] data) {
+            if (isLegacy(data) || data.length < 2)
+                throw new IllegalArgumentException("not binary content");
+            if (data[1] != VERSION)
+                throw new IllegalArgumentException("unknown content version: " + data[1]);
+            return new Reader(ByteBuffer.wrap(data, 2, data.length - 2).slice());
+        }
+
+        /** Advance to next field; false if there are no more fields. */
+        boolean next() {
+            if (!mBuffer.hasRemaining())
+                return false;
+
+            mTag = mBuffer.get() & 0xFF;
+            int length = mBuffer.getInt();
+            if (length < 0 || length > mBuffer.remaining())
+                throw new IllegalArgumentException("invalid field length: " + length);
+            mValue = mBuffer.slice();
+            mValue.limit(length);
+            mBuffer.position(mBuffer.position() + length);
+            return true;
+        }
+
+        int tag() {
+            return mTag;
+        }
+
+        String string() {
+            return new String(this.bytes(), StandardCharsets.UTF_8);
+        }
+
+        long number() {
+            return mValue.duplicate().getLong();
+        }
+
+        byte[] bytes() {
+            byte[] value = new byte[mValue.remaining()];
+            mValue.duplicate().get(value);
+            return value;
+        }
+
+        Reader nested() {
+            return new Reader(mValue.duplicate());
+        }
+    }
+}
@@ -20,7 +20,7 @@ package org.kontalk.model.message;
 
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -49,6 +49,7 @@ public final class InMessage extends KonMessage implements DecryptMessage {
                 proto.getCoderStatus());
 
         mTransmission = new Transmission(proto.getContact(), from, mID);
+        this.updateSearchIndex();
     }
 
     // used when loading from database
@@ -73,25 +74,28 @@ public final class InMessage extends KonMessage implements DecryptMessage {
     @Override
     public void setSigning(Coder.Signing signing) {
         mCoderStatus.setSigning(signing);
+        this.markDirty(DIRTY_CODER);
         this.save();
     }
 
     @Override
     public String getEncryptedContent() {
-        return mContent.getEncryptedContent();
+        return this.getContent().getEncryptedContent();
     }
 
     @Override
     public void setDecryptedContent(MessageContent decryptedContent) {
-        mContent.setDecryptedContent(decryptedContent);
+        this.getContent().setDecryptedContent(decryptedContent);
         mCoderStatus.setDecrypted();
+        this.markDirty(DIRTY_CONTENT | DIRTY_CODER);
         this.save();
+        this.updateSearchIndex();
         this.changed(ViewChange.CONTENT);
     }
 
     @Override
     public Set<Transmission> getTransmissions() {
-        return new HashSet<>(Collections.singletonList(mTransmission));
+        return Collections.singleton(mTransmission);
     }
 
     @Override
@@ -107,6 +111,12 @@ public final class InMessage extends KonMessage implements DecryptMessage {
                 mTransmission.equals(oMessage.mTransmission);
     }
 
+    @Override
+    String whereEqual(List<Object> values) {
+        values.add(Status.IN);
+        return COL_STATUS + " == ? AND " + mTransmission.whereEqual(TABLE + "._id", values);
+    }
+
     @Override
     public int hashCode() {
         int hash = this.abstractHashCode();
@@ -18,21 +18,29 @@
 
 package org.kontalk.model.message;
 
+import java.lang.ref.SoftReference;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Observable;
-import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -49,9 +57,14 @@ import org.kontalk.util.EncodingUtils;
 /**
  * Base class for incoming and outgoing XMMP messages.
  *
+ * Kept small, there can be many messages in memory: dates are stored as
+ * epoch milliseconds and changes are reported to the message list of the
+ * chat instead of per-message observers. The content of messages in inactive
+ * chats is only softly reachable and reloaded from the database if needed.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public abstract class KonMessage extends Observable implements Searchable, Observer {
+public abstract class KonMessage implements Searchable {
     private static final Logger LOGGER = Logger.getLogger(KonMessage.class.getName());
 
     /**
@@ -99,7 +112,8 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             COL_DATE + " INTEGER NOT NULL, " +
             // enum, message sending status
             COL_STATUS + " INTEGER NOT NULL, " +
-            // message content in JSON format
+            // message content in binary format (see ContentCodec),
+            // legacy rows in JSON format
             COL_CONTENT + " TEXT NOT NULL, " +
             // enum, determines if content is encrypted
             COL_ENCR_STAT + " INTEGER NOT NULL, " +
@@ -114,20 +128,66 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             COL_SERV_DATE + " INTEGER, " +
             "FOREIGN KEY (" + COL_CHAT_ID + ") REFERENCES " + Chat.TABLE + " (_id) " +
             ")";
+    // message lookup by chat, ordered by date and ID; covers the ID select
+    public static final String INDEX_CHAT =
+            "(" + COL_CHAT_ID + ", " + COL_DATE + ", _id)";
+    // receipt/error lookup by XMPP ID; covers the columns of findOutgoing()
+    public static final String INDEX_XMPP_ID =
+            "(" + COL_XMPP_ID + ", " + COL_STATUS + ", " + COL_CHAT_ID + ", " + COL_DATE + ")";
+    // outbox lookup, partial: only pending messages
+    public static final String INDEX_PENDING = "(" + COL_STATUS + ") WHERE " +
+            COL_STATUS + " == " + Status.PENDING.ordinal();
+
+    private static final Database.Insert INSERT = new Database.Insert(TABLE, 10);
+
+    // only rewrite if content was not saved (in new format) meanwhile
+    private static final Database.Update UPDATE_LEGACY_CONTENT =
+            new Database.Update(TABLE, COL_CONTENT).where(
+                    "typeof(" + COL_CONTENT + ") == 'text'");
+    private static final int MIGRATE_BATCH_SIZE = 500;
+
+    // flags for columns changed since last save
+    static final int DIRTY_STATUS = 1;
+    static final int DIRTY_CONTENT = 1 << 1;
+    static final int DIRTY_CODER = 1 << 2;
+    static final int DIRTY_SERV_ERR = 1 << 3;
+    static final int DIRTY_SERV_DATE = 1 << 4;
+    private static final int DIRTY_ALL = (1 << 5) - 1;
+
+    // prepared updates, by DIRTY_* flags of changed columns
+    private static final Database.Update[] UPDATES = createUpdates();
+
+    // full-text search index, row ID is the message ID
+    public static final String SEARCH_TABLE = "messages_search";
+    private static final String SEARCH_COL_TEXT = "text";
+    private static final String SEARCH_COL_CONTACTS = "contacts";
+    public static final String SEARCH_SCHEMA = "USING fts5(" +
+            // plain text (decrypted) of content
+            SEARCH_COL_TEXT + ", " +
+            // names and JIDs of transmission contacts
+            SEARCH_COL_CONTACTS +
+            ")";
 
     final int mID;
     private final Chat mChat;
     private final String mXMPPID;
-    private final Date mDate;
-    final MessageContent mContent;
-
-    // last timestamp of server transmission packet
+    // epoch milliseconds
+    private final long mDate;
+    // null if released, see releaseContent()
+    private volatile MessageContent mContent;
+    // released content, until cleared by garbage collector
+    private SoftReference<MessageContent> mSoftContent = null;
+
+    // last timestamp of server transmission packet, 0 if not set
     // incoming: (delayed) sent; outgoing: sent or error
-    Date mServerDate;
+    long mServerDate;
     Status mStatus;
     final CoderStatus mCoderStatus;
     ServerError mServerError;
 
+    // DIRTY_* flags of unsaved columns
+    private int mDirty = 0;
+
     KonMessage(Chat chat,
                String xmppID,
                MessageContent content,
@@ -136,17 +196,17 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                CoderStatus coderStatus) {
         mChat = chat;
         mXMPPID = xmppID;
-        mDate = new Date();
+        mDate = System.currentTimeMillis();
         mContent = content;
-        mContent.getAttachment().ifPresent(att -> att.addObserver(this));
+        mContent.getAttachment().ifPresent(att -> att.setMessage(this));
 
-        mServerDate = serverDate.orElse(null);
+        mServerDate = serverDate.map(Date::getTime).orElse(0L);
         mStatus = status;
         mCoderStatus = coderStatus;
-        mServerError = new ServerError();
+        mServerError = ServerError.NONE;
 
         // insert
-        List<Object> values = Arrays.asList(
+        mID = Model.database().execInsert(INSERT,
                 mChat.getID(),
                 // database downward compatibility due to bug in version 3.1.2 (and prior)
                 //Database.setString(mXMPPID),
@@ -154,15 +214,13 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                 mDate,
                 mStatus,
         // i simply don't like to save all possible content explicitly in the
-        // database, so we use JSON here
-                mContent.toJSON(),
+        // database, so we encode it here
+                mContent.toBytes(),
                 mCoderStatus.getEncryption(),
                 mCoderStatus.getSigning(),
                 mCoderStatus.getErrors(),
                 mServerError.toJSON(),
-                mServerDate);
-
-        mID = Model.database().execInsert(TABLE, values);
+                this.serverDateValue());
         if (mID <= 0) {
             LOGGER.log(Level.WARNING, "db, could not insert message");
         }
@@ -175,7 +233,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         mXMPPID = builder.mXMPPID;
         mDate = builder.mDate;
         mContent = builder.mContent;
-        mContent.getAttachment().ifPresent(att -> att.addObserver(this));
+        mContent.getAttachment().ifPresent(att -> att.setMessage(this));
 
         mServerDate = builder.mServerDate;
         mStatus = builder.mStatus;
@@ -206,11 +264,15 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
 
     /** Return (local) creation time of this message. */
     public Date getDate() {
-        return mDate;
+        return new Date(mDate);
     }
 
     public Optional<Date> getServerDate() {
-        return Optional.ofNullable(mServerDate);
+        return mServerDate != 0 ? Optional.of(new Date(mServerDate)) : Optional.empty();
+    }
+
+    private Long serverDateValue() {
+        return mServerDate != 0 ? mServerDate : null;
     }
 
     public Status getStatus() {
@@ -218,7 +280,40 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
     }
 
     public MessageContent getContent() {
-        return mContent;
+        MessageContent content = mContent;
+        return content != null ? content : this.restoreContent();
+    }
+
+    private synchronized MessageContent restoreContent() {
+        if (mContent != null)
+            return mContent;
+
+        MessageContent content = mSoftContent != null ? mSoftContent.get() : null;
+        if (content == null) {
+            content = loadContent(mID);
+            content.getAttachment().ifPresent(att -> att.setMessage(this));
+            mSoftContent = new SoftReference<>(content);
+        }
+        if (mChat.getMessages().isActive()) {
+            mContent = content;
+            mSoftContent = null;
+        }
+        return content;
+    }
+
+    /**
+     * Let the content be garbage collected if memory is needed. Ignored if
+     * the content is not saved or can still change by other components.
+     */
+    public synchronized void releaseContent() {
+        MessageContent content = mContent;
+        if (content == null || mDirty != 0 || mID <= 0 ||
+                mStatus == Status.PENDING || mCoderStatus.isEncrypted() ||
+                !content.isComplete())
+            return;
+
+        mSoftContent = new SoftReference<>(content);
+        mContent = null;
     }
 
     public CoderStatus getCoderStatus() {
@@ -230,6 +325,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             return;
 
         mCoderStatus.setSecurityErrors(errors);
+        this.markDirty(DIRTY_CODER);
         this.save();
         this.changed(ViewChange.STATUS);
     }
@@ -239,7 +335,11 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
     }
 
     public void setPreview(Preview preview) {
-        mContent.setPreview(preview);
+        // hold strong reference and mark first, content must not be released
+        // between change and save
+        MessageContent content = this.getContent();
+        this.markDirty(DIRTY_CONTENT);
+        content.setPreview(preview);
         this.save();
         this.changed(ViewChange.ATTACHMENT);
     }
@@ -262,16 +362,62 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                        Optional.of(((InMessage) this).getContact()) : Optional.empty();
     }
 
+    synchronized void markDirty(int flags) {
+        mDirty |= flags;
+    }
+
+    /** Save only the columns marked as changed, if any. */
     void save() {
-        Map<String, Object> set = new HashMap<>();
-        set.put(COL_STATUS, mStatus);
-        set.put(COL_CONTENT, mContent.toJSON());
-        set.put(COL_ENCR_STAT, mCoderStatus.getEncryption());
-        set.put(COL_SIGN_STAT, mCoderStatus.getSigning());
-        set.put(COL_COD_ERR, mCoderStatus.getErrors());
-        set.put(COL_SERV_ERR, Database.setString(mServerError.toJSON()));
-        set.put(COL_SERV_DATE, mServerDate);
-        Model.database().execUpdate(TABLE, set, mID);
+        int dirty;
+        MessageContent content;
+        synchronized (this) {
+            dirty = mDirty;
+            mDirty = 0;
+            // hold strong reference, content must not be cleared until saved
+            content = (dirty & DIRTY_CONTENT) != 0 ? this.getContent() : null;
+        }
+        if (dirty == 0)
+            return;
+
+        // same column order as in dirtyColumns()
+        List<Object> values = new ArrayList<>(7);
+        if ((dirty & DIRTY_STATUS) != 0)
+            values.add(mStatus);
+        if ((dirty & DIRTY_CONTENT) != 0)
+            values.add(content.toBytes());
+        if ((dirty & DIRTY_CODER) != 0) {
+            values.add(mCoderStatus.getEncryption());
+            values.add(mCoderStatus.getSigning());
+            values.add(mCoderStatus.getErrors());
+        }
+        if ((dirty & DIRTY_SERV_ERR) != 0)
+            values.add(Database.setString(mServerError.toJSON()));
+        if ((dirty & DIRTY_SERV_DATE) != 0)
+            values.add(this.serverDateValue());
+
+        Model.database().execUpdate(UPDATES[dirty], mID, values.toArray());
+    }
+
+    private static Database.Update[] createUpdates() {
+        Database.Update[] updates = new Database.Update[DIRTY_ALL + 1];
+        for (int dirty = 1; dirty <= DIRTY_ALL; dirty++)
+            updates[dirty] = new Database.Update(TABLE, dirtyColumns(dirty));
+        return updates;
+    }
+
+    private static String[] dirtyColumns(int dirty) {
+        List<String> columns = new ArrayList<>();
+        if ((dirty & DIRTY_STATUS) != 0)
+            columns.add(COL_STATUS);
+        if ((dirty & DIRTY_CONTENT) != 0)
+            columns.add(COL_CONTENT);
+        if ((dirty & DIRTY_CODER) != 0)
+            columns.addAll(Arrays.asList(COL_ENCR_STAT, COL_SIGN_STAT, COL_COD_ERR));
+        if ((dirty & DIRTY_SERV_ERR) != 0)
+            columns.add(COL_SERV_ERR);
+        if ((dirty & DIRTY_SERV_DATE) != 0)
+            columns.add(COL_SERV_DATE);
+        return columns.toArray(new String[0]);
     }
 
     public boolean delete() {
@@ -283,12 +429,35 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             LOGGER.warning("not in database: "+this);
             return true;
         }
-        return Model.database().execDelete(TABLE, mID);
+        Database db = Model.database();
+        if (db.isSearchEnabled())
+            db.execDeleteWhereInsecure(SEARCH_TABLE, "rowid == " + mID);
+        return db.execDelete(TABLE, mID);
+    }
+
+    /** Update text of this message in the full-text search index. */
+    void updateSearchIndex() {
+        Database db = Model.database();
+        if (mID <= 0 || !db.isSearchEnabled())
+            return;
+
+        db.execReplace(SEARCH_TABLE, mID,
+                searchValues(this.getContent(), this.getTransmissions()));
+    }
+
+    private static Map<String, Object> searchValues(MessageContent content,
+            Set<Transmission> transmissions) {
+        String contacts = transmissions.stream()
+                .map(t -> t.getContact().getName() + " " + t.getContact().getJID().string())
+                .collect(Collectors.joining(" "));
+        Map<String, Object> set = new HashMap<>();
+        set.put(SEARCH_COL_TEXT, content.getText());
+        set.put(SEARCH_COL_CONTACTS, contacts);
+        return set;
     }
 
     void changed(ViewChange change) {
-        this.setChanged();
-        this.notifyObservers(change);
+        mChat.getMessages().changed(this, change);
     }
 
     boolean abstractEquals(KonMessage oMessage) {
@@ -296,6 +465,12 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                 && !mXMPPID.isEmpty() && mXMPPID.equals(oMessage.mXMPPID);
     }
 
+    /**
+     * Condition for equal messages in the database (in addition to chat and
+     * XMPP ID). Values for the parameters are added.
+     */
+    abstract String whereEqual(List<Object> values);
+
     int abstractHashCode() {
         int hash = 7;
         hash = 17 * hash + Objects.hashCode(this.mChat);
@@ -305,7 +480,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
 
     @Override
     public boolean contains(String search) {
-        if (mContent.getText().toLowerCase().contains(search))
+        if (this.getContent().getText().toLowerCase().contains(search))
             return true;
 
         return this.getTransmissions().stream()
@@ -313,11 +488,12 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                         t.getContact().getJID().string().toLowerCase().contains(search));
     }
 
-    @Override
-    public void update(Observable o, Object arg) {
-        this.save();
-
-        if (o instanceof Attachment && arg instanceof Boolean && ((boolean) arg))
+    void onAttachmentChange(Attachment.Change change) {
+        if (change != Attachment.Change.PROGRESS) {
+            this.markDirty(DIRTY_CONTENT);
+            this.save();
+        }
+        if (change != Attachment.Change.DATA)
             this.changed(ViewChange.ATTACHMENT);
     }
 
@@ -325,67 +501,360 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
     public String toString() {
         return "M:id="+mID+",status="+mStatus+",chat="+mChat+",xmppid="+mXMPPID
                 +",transmissions="+this.getTransmissions()
-                +",date="+mDate+",sdate="+mServerDate
-                +",cont="+mContent
+                +",date="+this.getDate()+",sdate="+this.getServerDate().orElse(null)
+                +",cont="+this.getContent()
                 +",codstat="+mCoderStatus+",serverr="+mServerError;
     }
 
-    public static KonMessage load(ResultSet messageRS, Chat chat,
-            Map<Integer, Contact> contactMap) throws SQLException {
-        int id = messageRS.getInt("_id");
+    /**
+     * Load the newest messages of a chat that match an arbitrary 'where'
+     * clause (insecure to SQL injections, use with caution!), ordered by ID.
+     * Messages and their transmissions are read in one pass each, on a read
+     * connection: only committed writes are included and writers are not
+     * blocked.
+     * @param where condition on message columns, empty for all messages
+     * @param limit maximum number of (newest) messages, 0 for no limit
+     * @return number of rows read, including messages that can't be created
+     */
+    public static int load(Database db, Chat chat, Map<Integer, Contact> contactMap,
+            String where, int limit, Consumer<KonMessage> consumer) throws SQLException {
+        String idSelect = idSelect(chat, where, limit);
+        List<Row> rows = new ArrayList<>();
+        try (ResultSet messageRS = db.execSelect(messageSelect(idSelect),
+                        Collections.emptyList());
+                ResultSet transmissionRS = db.execSelect(
+                        Transmission.selectForMessages(idSelect), Collections.emptyList())) {
+            readRows(messageRS, transmissionRS, contactMap, rows::add);
+        }
+        // decode after the connections are released
+        for (Row row : rows) {
+            KonMessage message;
+            try {
+                message = build(row, chat);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't create message", ex);
+                continue;
+            }
+            consumer.accept(message);
+        }
+        return rows.size();
+    }
 
-        String xmppID = Database.getString(messageRS, KonMessage.COL_XMPP_ID);
+    /**
+     * Like load() above, but only rows are read by the calling thread;
+     * decoding and creation of messages is done on a pool.
+     * @return one task for each message, ordered by ID
+     */
+    public static List<ForkJoinTask<KonMessage>> load(Database db, Chat chat,
+            Map<Integer, Contact> contactMap, String where, int limit, ForkJoinPool pool)
+            throws SQLException {
+        List<ForkJoinTask<KonMessage>> tasks = new ArrayList<>();
+        String idSelect = idSelect(chat, where, limit);
+        try (ResultSet messageRS = db.execSelect(messageSelect(idSelect),
+                        Collections.emptyList());
+                ResultSet transmissionRS = db.execSelect(
+                        Transmission.selectForMessages(idSelect), Collections.emptyList())) {
+            readRows(messageRS, transmissionRS, contactMap,
+                    row -> tasks.add(pool.submit(() -> build(row, chat))));
+        }
+        return tasks;
+    }
 
-        Date date = new Date(messageRS.getLong(KonMessage.COL_DATE));
+    private static String idSelect(Chat chat, String where, int limit) {
+        return "SELECT _id FROM " + TABLE +
+                " WHERE " + COL_CHAT_ID + " == " + chat.getID() +
+                (where.isEmpty() ? "" : " AND (" + where + ")") +
+                " ORDER BY " + COL_DATE + " DESC, _id DESC" +
+                (limit > 0 ? " LIMIT " + limit : "");
+    }
 
-        int statusIndex = messageRS.getInt(KonMessage.COL_STATUS);
-        KonMessage.Status status = KonMessage.Status.values()[statusIndex];
+    private static String messageSelect(String idSelect) {
+        return "SELECT * FROM " + TABLE + " WHERE _id IN (" + idSelect + ") ORDER BY _id";
+    }
 
-        String jsonContent = messageRS.getString(KonMessage.COL_CONTENT);
+    private static void readRows(ResultSet messageRS, ResultSet transmissionRS,
+            Map<Integer, Contact> contactMap, Consumer<Row> consumer) throws SQLException {
+        Transmission.Merger merger = new Transmission.Merger(transmissionRS, contactMap);
+        while (messageRS.next()) {
+            consumer.accept(new Row(messageRS, merger));
+        }
+    }
 
-        MessageContent content = MessageContent.fromJSONString(jsonContent);
+    /**
+     * Find the newest outgoing message with an XMPP ID in a chat. Only the
+     * XMPP ID index is read; writes not committed yet are included.
+     * @return ID of message, 0 if not found
+     */
+    public static int findOutgoing(Database db, Chat chat, String xmppID) {
+        // unary '+': don't let the planner choose the chat index, XMPP IDs are selective
+        return findOutgoing(db, xmppID, " AND +" + COL_CHAT_ID + " == " + chat.getID())
+                .map(Map.Entry::getValue).orElse(0);
+    }
 
-        int encryptionIndex = messageRS.getInt(KonMessage.COL_ENCR_STAT);
-        Coder.Encryption encryption = Coder.Encryption.values()[encryptionIndex];
+    /**
+     * Find the newest outgoing message with an XMPP ID in any chat, like
+     * above.
+     * @return ID of the chat mapped to ID of the message, empty if not found
+     */
+    public static Optional<Map.Entry<Integer, Integer>> findOutgoing(Database db,
+            String xmppID) {
+        return findOutgoing(db, xmppID, "");
+    }
 
-        int signingIndex = messageRS.getInt(KonMessage.COL_SIGN_STAT);
-        Coder.Signing signing = Coder.Signing.values()[signingIndex];
+    private static Optional<Map.Entry<Integer, Integer>> findOutgoing(Database db,
+            String xmppID, String where) {
+        String select = "SELECT " + COL_CHAT_ID + ", _id FROM " + TABLE +
+                " WHERE " + COL_XMPP_ID + " == ? AND " + COL_STATUS + " != ?" + where +
+                " ORDER BY " + COL_DATE + " DESC, _id DESC LIMIT 1";
+        try {
+            return db.execWriterSelect(select, Arrays.asList((Object) xmppID, Status.IN),
+                    resultSet -> resultSet.next() ?
+                            Optional.of(new AbstractMap.SimpleImmutableEntry<>(
+                                    resultSet.getInt(1), resultSet.getInt(2))) :
+                            Optional.empty());
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't find message", ex);
+            return Optional.empty();
+        }
+    }
 
-        int errorFlags = messageRS.getInt(KonMessage.COL_COD_ERR);
-        EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(
-                Coder.Error.class, errorFlags);
+    /**
+     * Return if another message equal to this one is in the database. Only
+     * IDs are read, using the XMPP ID index; writes not committed yet are
+     * included.
+     */
+    public boolean hasDuplicate(Database db) {
+        if (mXMPPID.isEmpty())
+            return false;
+
+        List<Object> values = new ArrayList<>(Arrays.asList(mXMPPID, mChat.getID(), mID));
+        String select = "SELECT _id FROM " + TABLE +
+                " WHERE " + COL_XMPP_ID + " == ? AND " + COL_CHAT_ID + " == ? AND _id != ?" +
+                " AND " + this.whereEqual(values) + " LIMIT 1";
+        try {
+            return db.execWriterSelect(select, values, ResultSet::next);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't check for equal message", ex);
+            return false;
+        }
+    }
+
+    /** Delete all messages of a chat. Not commited! */
+    public static boolean deleteAll(Database db, Chat chat) {
+        String where = COL_CHAT_ID + " == " + chat.getID();
+        String idSelect = "SELECT _id FROM " + TABLE + " WHERE " + where;
+        if (db.isSearchEnabled())
+            db.execDeleteWhereInsecure(SEARCH_TABLE, "rowid IN (" + idSelect + ")");
+        return Transmission.deleteForMessages(db, idSelect)
+                && db.execDeleteWhereInsecure(TABLE, where);
+    }
+
+    private static MessageContent loadContent(int id) {
+        String select = "SELECT " + COL_CONTENT + " FROM " + TABLE + " WHERE _id == ?";
+        byte[] bytes;
+        try {
+            // content could be saved but not committed yet
+            bytes = Model.database().execWriterSelect(select, Arrays.asList((Object) id),
+                    resultSet -> resultSet.next() ? resultSet.getBytes(COL_CONTENT) : null);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't reload message content", ex);
+            return MessageContent.plainText("");
+        }
+        if (bytes == null) {
+            LOGGER.warning("message not found, id: "+id);
+            return MessageContent.plainText("");
+        }
+        return MessageContent.fromBytes(bytes);
+    }
+
+    /**
+     * Add all messages that are not in the full-text search index yet.
+     * Long running for large databases.
+     */
+    public static void updateSearchIndex(Database db, Map<Integer, Contact> contactMap) {
+        if (!db.isSearchEnabled())
+            return;
+
+        String idSelect = "SELECT _id FROM " + TABLE +
+                " WHERE _id NOT IN (SELECT rowid FROM " + SEARCH_TABLE + ")";
+        int count = indexMessages(db, idSelect, contactMap);
+        if (count > 0)
+            LOGGER.info("messages added to search index: "+count);
+    }
+
+    /**
+     * Update the full-text search index of all messages with a contact, e.g.
+     * after the contact name changed.
+     */
+    public static void updateSearchIndex(Database db, Contact contact,
+            Map<Integer, Contact> contactMap) {
+        if (!db.isSearchEnabled())
+            return;
+
+        int count = indexMessages(db, Transmission.selectMessageIDs(contact), contactMap);
+        LOGGER.config("messages reindexed: "+count);
+    }
+
+    private static int indexMessages(Database db, String idSelect,
+            Map<Integer, Contact> contactMap) {
+        int count = 0;
+        try (ResultSet messageRS = db.execSelect(messageSelect(idSelect),
+                        Collections.emptyList());
+                ResultSet transmissionRS = db.execSelect(
+                        Transmission.selectForMessages(idSelect), Collections.emptyList())) {
+            Transmission.Merger merger = new Transmission.Merger(transmissionRS, contactMap);
+            while (messageRS.next()) {
+                int id = messageRS.getInt("_id");
+                MessageContent content = MessageContent.fromBytes(
+                        messageRS.getBytes(COL_CONTENT));
+                db.execReplace(SEARCH_TABLE, id, searchValues(content, merger.next(id)));
+                count++;
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't update search index", ex);
+        }
+        return count;
+    }
+
+    /**
+     * Rewrite content of all messages still saved in legacy JSON format.
+     * Long running for large databases.
+     */
+    public static void migrateContent(Database db) {
+        String select = "SELECT _id, " + COL_CONTENT + " FROM " + TABLE +
+                " WHERE typeof(" + COL_CONTENT + ") == 'text' AND _id > ?" +
+                " ORDER BY _id LIMIT " + MIGRATE_BATCH_SIZE;
+        int lastID = 0;
+        int count = 0;
+        boolean more = true;
+        while (more) {
+            more = false;
+            try (ResultSet resultSet = db.execSelect(select, Arrays.asList((Object) lastID))) {
+                while (resultSet.next()) {
+                    more = true;
+                    lastID = resultSet.getInt("_id");
+                    MessageContent content = MessageContent.fromBytes(
+                            resultSet.getBytes(COL_CONTENT));
+                    db.execUpdate(UPDATE_LEGACY_CONTENT, lastID, (Object) content.toBytes());
+                    count++;
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't migrate message content", ex);
+                return;
+            }
+        }
+        db.flush();
+        if (count > 0)
+            LOGGER.info("messages migrated to binary content: "+count);
+    }
+
+    /**
+     * Search for text in all messages (including contact names).
+     * @return IDs of matching messages, mapped to their chat ID; newest first
+     */
+    public static Map<Integer, Integer> search(Database db, String text) {
+        Map<Integer, Integer> hits = new LinkedHashMap<>();
+        // every word is a prefix, all must match
+        String query = Arrays.stream(text.trim().split("\\s+"))
+                .filter(word -> !word.isEmpty())
+                .map(word -> "\"" + word.replace("\"", "\"\"") + "\"*")
+                .collect(Collectors.joining(" "));
+        if (query.isEmpty())
+            return hits;
+
+        String select = "SELECT m._id, m." + COL_CHAT_ID +
+                " FROM " + SEARCH_TABLE + " s JOIN " + TABLE + " m ON m._id == s.rowid" +
+                " WHERE " + SEARCH_TABLE + " MATCH ?" +
+                " ORDER BY m." + COL_DATE + " DESC";
+        try (ResultSet resultSet = db.execSelect(select, Arrays.asList((Object) query))) {
+            while (resultSet.next())
+                hits.put(resultSet.getInt(1), resultSet.getInt(2));
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't search messages", ex);
+        }
+        return hits;
+    }
+
+    /** Condition for all messages created before a message (in chat order). */
+    public static String whereBefore(KonMessage message) {
+        long date = message.mDate;
+        return COL_DATE + " < " + date + " OR (" +
+                COL_DATE + " == " + date + " AND _id < " + message.getID() + ")";
+    }
+
+    // raw column values of one message, read before decoding
+    private static final class Row {
+        private final int mID;
+        private final String mXMPPID;
+        private final long mDate;
+        private final int mStatus;
+        private final byte[] mContent;
+        private final int mEncryption;
+        private final int mSigning;
+        private final int mErrors;
+        private final String mServerError;
+        private final long mServerDate;
+        private final Set<Transmission> mTransmissions;
+
+        private Row(ResultSet messageRS, Transmission.Merger merger) throws SQLException {
+            mID = messageRS.getInt("_id");
+            mXMPPID = Database.getString(messageRS, KonMessage.COL_XMPP_ID);
+            mDate = messageRS.getLong(KonMessage.COL_DATE);
+            mStatus = messageRS.getInt(KonMessage.COL_STATUS);
+            mContent = messageRS.getBytes(KonMessage.COL_CONTENT);
+            mEncryption = messageRS.getInt(KonMessage.COL_ENCR_STAT);
+            mSigning = messageRS.getInt(KonMessage.COL_SIGN_STAT);
+            mErrors = messageRS.getInt(KonMessage.COL_COD_ERR);
+            mServerError = messageRS.getString(KonMessage.COL_SERV_ERR);
+            mServerDate = messageRS.getLong(KonMessage.COL_SERV_DATE);
+            mTransmissions = merger.next(mID);
+        }
+    }
+
+    private static KonMessage build(Row row, Chat chat) {
+        KonMessage.Status status = KonMessage.Status.values()[row.mStatus];
 
+        MessageContent content = MessageContent.fromBytes(row.mContent);
+
+        Coder.Encryption encryption = Coder.Encryption.values()[row.mEncryption];
+        Coder.Signing signing = Coder.Signing.values()[row.mSigning];
+        EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(
+                Coder.Error.class, row.mErrors);
         CoderStatus coderStatus = new CoderStatus(encryption, signing, coderErrors);
 
-        String jsonServerError = messageRS.getString(KonMessage.COL_SERV_ERR);
         KonMessage.ServerError serverError =
-                KonMessage.ServerError.fromJSON(jsonServerError);
+                KonMessage.ServerError.fromJSON(row.mServerError);
 
-        long sDate = messageRS.getLong(KonMessage.COL_SERV_DATE);
-        Date serverDate = sDate == 0 ? null : new Date(sDate);
-
-        KonMessage.Builder builder = new KonMessage.Builder(id, chat, status, date, content);
-        builder.transmissions(Transmission.load(id, contactMap));
-        builder.xmppID(xmppID);
-        if (serverDate != null)
-            builder.serverDate(serverDate);
+        KonMessage.Builder builder = new KonMessage.Builder(row.mID, chat, status,
+                row.mDate, content);
+        builder.transmissions(compact(row.mTransmissions));
+        builder.xmppID(row.mXMPPID);
+        builder.serverDate(row.mServerDate);
         builder.coderStatus(coderStatus);
         builder.serverError(serverError);
 
         return builder.build();
     }
 
+    /** Immutable set of transmissions, without hash table for one element. */
+    static Set<Transmission> compact(Set<Transmission> transmissions) {
+        switch (transmissions.size()) {
+            case 0: return Collections.emptySet();
+            case 1: return Collections.singleton(transmissions.iterator().next());
+            default: return Collections.unmodifiableSet(new HashSet<>(transmissions));
+        }
+    }
+
     public static final class ServerError {
         private static final String JSON_COND = "cond";
         private static final String JSON_TEXT = "text";
 
+        /** No error, shared by all messages without error. */
+        static final ServerError NONE = new ServerError("", "");
+
         public final String condition;
         public final String text;
 
-        private ServerError() {
-            this("", "");
-        }
-
         ServerError(String condition, String text) {
             this.condition = condition;
             this.text = text;
@@ -406,10 +875,12 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         static ServerError fromJSON(String jsonContent) {
             Object obj = JSONValue.parse(jsonContent);
             Map<?, ?> map = (Map) obj;
-            if (map == null) return new ServerError();
+            if (map == null) return NONE;
             String condition = EncodingUtils.getJSONString(map, JSON_COND);
             String text = EncodingUtils.getJSONString(map, JSON_TEXT);
-            return new ServerError(condition, text);
+            return condition.isEmpty() && text.isEmpty() ?
+                    NONE :
+                    new ServerError(condition, text);
         }
     }
 
@@ -417,20 +888,20 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         private final int mID;
         private final Chat mChat;
         private final Status mStatus;
-        private final Date mDate;
+        private final long mDate;
         private final MessageContent mContent;
 
         Set<Transmission> mTransmissions = null;
 
         private String mXMPPID = null;
-        private Date mServerDate = null;
+        private long mServerDate = 0;
         private CoderStatus mCoderStatus = null;
         private ServerError mServerError = null;
 
-        private Builder(int id,
+        Builder(int id,
                 Chat chat,
                 Status status,
-                Date date,
+                long date,
                 MessageContent content) {
             mID = id;
             mChat = chat;
@@ -439,14 +910,14 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             mContent = content;
         }
 
-        private void transmissions(Set<Transmission> transmission) { mTransmissions = transmission; }
+        void transmissions(Set<Transmission> transmission) { mTransmissions = transmission; }
 
-        private void xmppID(String xmppID) { mXMPPID = xmppID; }
-        private void serverDate(Date date) { mServerDate = date; }
-        private void coderStatus(CoderStatus coderStatus) { mCoderStatus = coderStatus; }
-        private void serverError(ServerError error) { mServerError = error; }
+        void xmppID(String xmppID) { mXMPPID = xmppID; }
+        void serverDate(long date) { mServerDate = date; }
+        void coderStatus(CoderStatus coderStatus) { mCoderStatus = coderStatus; }
+        void serverError(ServerError error) { mServerError = error; }
 
-        private KonMessage build() {
+        KonMessage build() {
             if (mTransmissions == null ||
                     mXMPPID == null ||
                     mCoderStatus == null ||
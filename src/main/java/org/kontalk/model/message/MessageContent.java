@@ -19,20 +19,21 @@
 package org.kontalk.model.message;
 
 import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.kontalk.crypto.Coder;
 import org.kontalk.misc.JID;
@@ -75,6 +76,15 @@ public class MessageContent {
     private static final String JSON_GROUP_COMMAND = "group_command";
     private static final String JSON_DEC_CONTENT = "decrypted_content";
 
+    // binary encoding tags, see ContentCodec; do not modify, only add!
+    private static final int TAG_PLAIN_TEXT = 1;
+    private static final int TAG_ENC_CONTENT = 2;
+    private static final int TAG_IN_ATTACHMENT = 3;
+    private static final int TAG_OUT_ATTACHMENT = 4;
+    private static final int TAG_PREVIEW = 5;
+    private static final int TAG_GROUP_COMMAND = 6;
+    private static final int TAG_DEC_CONTENT = 7;
+
     // used for decrypted content of incoming messages, outgoing messages
     // and as fallback
     public static MessageContent plainText(String plainText) {
@@ -173,6 +183,11 @@ public class MessageContent {
         return Optional.ofNullable(mGroupCommand);
     }
 
+    /** Return if this content can not change anymore, i.e. the attachment is transferred. */
+    boolean isComplete() {
+        return this.getAttachment().map(Attachment::isComplete).orElse(true);
+    }
+
     /**
      * Return if there is no content in this message.
      * @return true if there is no content at all, false otherwise
@@ -193,28 +208,61 @@ public class MessageContent {
                 +",decr="+mDecryptedContent;
     }
 
-    // using legacy lib, raw types extend Object
-    @SuppressWarnings("unchecked")
-    String toJSON() {
-        JSONObject json = new JSONObject();
-
-        EncodingUtils.putJSON(json, JSON_PLAIN_TEXT, mPlainText);
+    /** Encode content in (versioned) binary format for the database. */
+    byte[] toBytes() {
+        ContentCodec.Writer writer = new ContentCodec.Writer();
+        this.write(writer);
+        return writer.toBytes();
+    }
 
+    private void write(ContentCodec.Writer writer) {
+        writer.putString(TAG_PLAIN_TEXT, mPlainText);
+        writer.putString(TAG_ENC_CONTENT, mEncryptedContent);
         if (mAttachment != null)
-            json.put(JSON_ATTACHMENT, mAttachment.toJSONString());
-
-        EncodingUtils.putJSON(json, JSON_ENC_CONTENT, mEncryptedContent);
-
+            writer.putNested(mAttachment instanceof InAttachment ?
+                    TAG_IN_ATTACHMENT : TAG_OUT_ATTACHMENT, mAttachment::write);
         if (mPreview != null)
-            json.put(JSON_PREVIEW, mPreview.toJSON());
-
+            writer.putNested(TAG_PREVIEW, mPreview::write);
         if (mGroupCommand != null)
-            json.put(JSON_GROUP_COMMAND, mGroupCommand.toJSON());
-
+            writer.putNested(TAG_GROUP_COMMAND, mGroupCommand::write);
         if (mDecryptedContent != null)
-            json.put(JSON_DEC_CONTENT, mDecryptedContent.toJSON());
+            writer.putNested(TAG_DEC_CONTENT, mDecryptedContent::write);
+    }
+
+    /** Decode content from database, binary or legacy JSON format. */
+    static MessageContent fromBytes(byte[] data) {
+        if (ContentCodec.isLegacy(data))
+            return fromJSONString(new String(data, StandardCharsets.UTF_8));
+
+        try {
+            return read(ContentCodec.Reader.of(data));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException |
+                BufferUnderflowException ex) {
+            LOGGER.log(Level.WARNING, "can't decode message content", ex);
+            return plainText("");
+        }
+    }
 
-        return json.toJSONString();
+    private static MessageContent read(ContentCodec.Reader reader) {
+        Builder builder = new Builder();
+        while (reader.next()) {
+            switch (reader.tag()) {
+                case TAG_PLAIN_TEXT: builder.body(reader.string()); break;
+                case TAG_ENC_CONTENT: builder.encrypted(reader.string()); break;
+                case TAG_IN_ATTACHMENT:
+                    builder.attachment(InAttachment.read(reader.nested())); break;
+                case TAG_OUT_ATTACHMENT:
+                    builder.attachment(OutAttachment.read(reader.nested())); break;
+                case TAG_PREVIEW: builder.preview(Preview.read(reader.nested())); break;
+                case TAG_GROUP_COMMAND:
+                    builder.groupCommand(GroupCommand.read(reader.nested())); break;
+                case TAG_DEC_CONTENT:
+                    builder.decryptedContent(read(reader.nested())); break;
+                default:
+                    // newer version, ignore
+            }
+        }
+        return builder.build();
     }
 
     static MessageContent fromJSONString(String jsonContent) {
@@ -250,13 +298,30 @@ public class MessageContent {
         }
     }
 
-    public abstract static class Attachment extends Observable {
+    public abstract static class Attachment {
         static final String JSON_URL = "url";
         static final String JSON_FILENAME = "file_name";
 
-        void changed(boolean repeat) {
-            this.setChanged();
-            this.notifyObservers(repeat);
+        // the message this attachment belongs to, notified about changes
+        private KonMessage mMessage = null;
+
+        /** Type of attachment change. */
+        public enum Change {
+            /** Saved data changed, not visible. */
+            DATA,
+            /** Saved data changed and should be shown. */
+            DATA_VIEW,
+            /** Only transient download progress changed, nothing to save. */
+            PROGRESS
+        }
+
+        void setMessage(KonMessage message) {
+            mMessage = message;
+        }
+
+        void changed(Change change) {
+            if (mMessage != null)
+                mMessage.onAttachmentChange(change);
         }
 
         public abstract String getFilename();
@@ -276,7 +341,9 @@ public class MessageContent {
 
         public abstract boolean isEncrypted();
 
-        protected abstract String toJSONString();
+        abstract boolean isComplete();
+
+        abstract void write(ContentCodec.Writer writer);
 
         // using legacy lib, raw types extend Object
         @SuppressWarnings("unchecked")
@@ -299,6 +366,12 @@ public class MessageContent {
         private static final String JSON_SIGNING = "signing";
         private static final String JSON_CODER_ERRORS = "coder_errors";
 
+        private static final int TAG_URL = 1;
+        private static final int TAG_FILENAME = 2;
+        private static final int TAG_ENCRYPTION = 3;
+        private static final int TAG_SIGNING = 4;
+        private static final int TAG_CODER_ERRORS = 5;
+
         // URL for file download
         private final URI mURL;
         // file name of downloaded file, empty by default
@@ -335,7 +408,7 @@ public class MessageContent {
         public void setDownloadProgress(int p) {
             mDownloadProgress = p;
             if (p <= 0)
-                this.changed(true);
+                this.changed(Change.PROGRESS);
         }
 
         @Override
@@ -347,7 +420,7 @@ public class MessageContent {
             mFilename = fileName;
             mCoderStatus = encrypted ? CoderStatus.createEncrypted() : CoderStatus.createInsecure();
             if (!encrypted)
-                this.changed(true);
+                this.changed(Change.DATA_VIEW);
         }
 
         @Override
@@ -358,7 +431,7 @@ public class MessageContent {
         public void setDecryptedFile(String filename) {
             mCoderStatus.setDecrypted();
             mFilename = filename;
-            this.changed(true);
+            this.changed(Change.DATA_VIEW);
         }
 
         public void setErrors(EnumSet<Coder.Error> errors) {
@@ -381,22 +454,14 @@ public class MessageContent {
         }
 
         @Override
-        public String toString() {
-            return "{IOATT:url="+mURL+",file="+mFilename+",status="+mCoderStatus+"}";
+        boolean isComplete() {
+            // downloaded and decrypted
+            return !mFilename.isEmpty() && !mCoderStatus.isEncrypted();
         }
 
-        // using legacy lib, raw types extend Object
-        @SuppressWarnings("unchecked")
         @Override
-        protected String toJSONString() {
-            JSONObject json = new JSONObject();
-            EncodingUtils.putJSON(json, JSON_URL, mURL.toString());
-            EncodingUtils.putJSON(json, JSON_FILENAME, mFilename);
-            json.put(JSON_ENCRYPTION, mCoderStatus.getEncryption().ordinal());
-            json.put(JSON_SIGNING, mCoderStatus.getSigning().ordinal());
-            int errs = EncodingUtils.enumSetToInt(mCoderStatus.getErrors());
-            json.put(JSON_CODER_ERRORS, errs);
-            return json.toJSONString();
+        public String toString() {
+            return "{IOATT:url="+mURL+",file="+mFilename+",status="+mCoderStatus+"}";
         }
 
         private static InAttachment fromJSON(Map<?, ?> map) {
@@ -412,12 +477,49 @@ public class MessageContent {
 
             return new InAttachment(url, filename, new CoderStatus(encryption, signing, errors));
         }
+
+        @Override
+        void write(ContentCodec.Writer writer) {
+            writer.putString(TAG_URL, mURL.toString());
+            writer.putString(TAG_FILENAME, mFilename);
+            writer.putNumber(TAG_ENCRYPTION, mCoderStatus.getEncryption().ordinal());
+            writer.putNumber(TAG_SIGNING, mCoderStatus.getSigning().ordinal());
+            writer.putNumber(TAG_CODER_ERRORS,
+                    EncodingUtils.enumSetToInt(mCoderStatus.getErrors()));
+        }
+
+        private static InAttachment read(ContentCodec.Reader reader) {
+            String url = "";
+            String filename = "";
+            Coder.Encryption encryption = Coder.Encryption.NOT;
+            Coder.Signing signing = Coder.Signing.UNKNOWN;
+            int errors = 0;
+            while (reader.next()) {
+                switch (reader.tag()) {
+                    case TAG_URL: url = reader.string(); break;
+                    case TAG_FILENAME: filename = reader.string(); break;
+                    case TAG_ENCRYPTION:
+                        encryption = Coder.Encryption.values()[(int) reader.number()]; break;
+                    case TAG_SIGNING:
+                        signing = Coder.Signing.values()[(int) reader.number()]; break;
+                    case TAG_CODER_ERRORS: errors = (int) reader.number(); break;
+                    default:
+                }
+            }
+            return new InAttachment(URI.create(url), filename, new CoderStatus(encryption,
+                    signing, EncodingUtils.intToEnumSet(Coder.Error.class, errors)));
+        }
     }
 
     public static final class OutAttachment extends Attachment {
         private static final String JSON_MIME_TYPE = "mime_type";
         private static final String JSON_LENGTH = "length";
 
+        private static final int TAG_URL = 1;
+        private static final int TAG_FILE = 2;
+        private static final int TAG_MIME_TYPE = 3;
+        private static final int TAG_LENGTH = 4;
+
         // path to upload file
         private final Path mFile;
         // URL for file download, empty string by default
@@ -458,7 +560,7 @@ public class MessageContent {
             mURL = url;
             mMimeType = mime;
             mLength = length;
-            this.changed(false);
+            this.changed(Change.DATA);
         }
 
         @Override
@@ -485,20 +587,13 @@ public class MessageContent {
         }
 
         @Override
-        public String toString() {
-            return "{OATT:file="+mFile+",url="+mURL+",mime="+mMimeType+",length="+mLength+"}";
+        boolean isComplete() {
+            return this.hasURL();
         }
 
-        // using legacy lib, raw types extend Object
-        @SuppressWarnings("unchecked")
         @Override
-        protected String toJSONString() {
-            JSONObject json = new JSONObject();
-            EncodingUtils.putJSON(json, JSON_URL, mURL.toString());
-            EncodingUtils.putJSON(json, JSON_MIME_TYPE, mMimeType);
-            json.put(JSON_LENGTH, mLength);
-            EncodingUtils.putJSON(json, JSON_FILENAME, mFile.toString());
-            return json.toJSONString();
+        public String toString() {
+            return "{OATT:file="+mFile+",url="+mURL+",mime="+mMimeType+",length="+mLength+"}";
         }
 
         private static OutAttachment fromJSON(Map<?, ?> map) {
@@ -509,6 +604,31 @@ public class MessageContent {
 
             return new OutAttachment(url, file, mimeType, length);
         }
+
+        @Override
+        void write(ContentCodec.Writer writer) {
+            writer.putString(TAG_URL, mURL.toString());
+            writer.putString(TAG_FILE, mFile.toString());
+            writer.putString(TAG_MIME_TYPE, mMimeType);
+            writer.putNumber(TAG_LENGTH, mLength);
+        }
+
+        private static OutAttachment read(ContentCodec.Reader reader) {
+            String url = "";
+            String file = "";
+            String mimeType = "";
+            long length = -1;
+            while (reader.next()) {
+                switch (reader.tag()) {
+                    case TAG_URL: url = reader.string(); break;
+                    case TAG_FILE: file = reader.string(); break;
+                    case TAG_MIME_TYPE: mimeType = reader.string(); break;
+                    case TAG_LENGTH: length = reader.number(); break;
+                    default:
+                }
+            }
+            return new OutAttachment(URI.create(url), Paths.get(file), mimeType, length);
+        }
     }
 
     // immutable
@@ -516,6 +636,8 @@ public class MessageContent {
 
         private static final String JSON_MIME_TYPE = "mime_type";
 
+        private static final int TAG_MIME_TYPE = 1;
+
         private final byte[] mData;
         private final String mMimeType;
 
@@ -543,14 +665,6 @@ public class MessageContent {
             return mMimeType;
         }
 
-        // using legacy lib, raw types extend Object
-        @SuppressWarnings("unchecked")
-        private String toJSON() {
-            JSONObject json = new JSONObject();
-            EncodingUtils.putJSON(json, JSON_MIME_TYPE, mMimeType);
-            return json.toJSONString();
-        }
-
         private static Preview fromJSONOrNull(String json) {
             Object obj = JSONValue.parse(json);
             try {
@@ -563,6 +677,20 @@ public class MessageContent {
             }
         }
 
+        // data is saved as file, not here
+        private void write(ContentCodec.Writer writer) {
+            writer.putString(TAG_MIME_TYPE, mMimeType);
+        }
+
+        private static Preview read(ContentCodec.Reader reader) {
+            String mimeType = "";
+            while (reader.next()) {
+                if (reader.tag() == TAG_MIME_TYPE)
+                    mimeType = reader.string();
+            }
+            return new Preview(mimeType);
+        }
+
         @Override
         public String toString() {
             return "{PRE:mime="+mMimeType+"}";
@@ -575,6 +703,12 @@ public class MessageContent {
         private static final String JSON_REMOVED = "removed";
         private static final String JSON_SUBJECT = "subj";
 
+        private static final int TAG_OP = 1;
+        private static final int TAG_SUBJECT = 2;
+        // one field for each JID
+        private static final int TAG_ADDED = 3;
+        private static final int TAG_REMOVED = 4;
+
         // ordinals used in database
         public enum OP {
             CREATE,
@@ -647,26 +781,6 @@ public class MessageContent {
             return mSubject;
         }
 
-        // using legacy lib, raw types extend Object
-        @SuppressWarnings("unchecked")
-        private String toJSON() {
-            JSONObject json = new JSONObject();
-            json.put(JSON_OP, mOP.ordinal());
-            EncodingUtils.putJSON(json, JSON_SUBJECT, mSubject);
-
-            List<String> added = mAdded.stream()
-                    .map(JID::string)
-                    .collect(Collectors.toList());
-            json.put(JSON_ADDED, added);
-
-            List<String> removed = mRemoved.stream()
-                    .map(JID::string)
-                    .collect(Collectors.toList());
-            json.put(JSON_REMOVED, removed);
-
-            return json.toJSONString();
-        }
-
         // using legacy lib
         @SuppressWarnings("unchecked")
         private static GroupCommand fromJSONOrNull(String json) {
@@ -697,6 +811,30 @@ public class MessageContent {
             }
         }
 
+        private void write(ContentCodec.Writer writer) {
+            writer.putNumber(TAG_OP, mOP.ordinal());
+            writer.putString(TAG_SUBJECT, mSubject);
+            mAdded.forEach(jid -> writer.putString(TAG_ADDED, jid.string()));
+            mRemoved.forEach(jid -> writer.putString(TAG_REMOVED, jid.string()));
+        }
+
+        private static GroupCommand read(ContentCodec.Reader reader) {
+            OP op = OP.SET;
+            String subject = "";
+            List<JID> added = new ArrayList<>();
+            List<JID> removed = new ArrayList<>();
+            while (reader.next()) {
+                switch (reader.tag()) {
+                    case TAG_OP: op = OP.values()[(int) reader.number()]; break;
+                    case TAG_SUBJECT: subject = reader.string(); break;
+                    case TAG_ADDED: added.add(JID.bare(reader.string())); break;
+                    case TAG_REMOVED: removed.add(JID.bare(reader.string())); break;
+                    default:
+                }
+            }
+            return new GroupCommand(op, added, removed, subject);
+        }
+
         @Override
         public String toString() {
             return "{GC:op="+mOP+",subj="+mSubject+"}";
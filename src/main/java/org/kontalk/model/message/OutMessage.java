@@ -18,7 +18,6 @@
 
 package org.kontalk.model.message;
 
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -60,14 +59,15 @@ public final class OutMessage extends KonMessage {
             if (!succ)
                 LOGGER.warning("duplicate contact: " + contact);
         });
-        mTransmissions = Collections.unmodifiableSet(ts);
+        mTransmissions = compact(ts);
+        this.updateSearchIndex();
     }
 
     // used when loading from database
     OutMessage(KonMessage.Builder builder) {
         super(builder);
 
-        mTransmissions = Collections.unmodifiableSet(builder.mTransmissions);
+        mTransmissions = builder.mTransmissions;
     }
 
     public void setReceived(JID jid, Date date) {
@@ -97,8 +97,12 @@ public final class OutMessage extends KonMessage {
             LOGGER.warning("unexpected new status of sent message: "+status);
 
         mStatus = status;
-        if (status != Status.PENDING)
-            mServerDate = new Date();
+        int dirty = DIRTY_STATUS;
+        if (status != Status.PENDING) {
+            mServerDate = System.currentTimeMillis();
+            dirty |= DIRTY_SERV_DATE;
+        }
+        this.markDirty(dirty);
         this.save();
         this.changed(ViewChange.STATUS);
     }
@@ -108,6 +112,7 @@ public final class OutMessage extends KonMessage {
         if (mStatus != Status.SENT)
             LOGGER.warning("unexpected status of message with error: "+mStatus);
         mServerError = new KonMessage.ServerError(condition, text);
+        this.markDirty(DIRTY_SERV_ERR);
         this.setStatus(Status.ERROR);
     }
 
@@ -132,6 +137,12 @@ public final class OutMessage extends KonMessage {
         return this.abstractEquals((KonMessage) o);
     }
 
+    @Override
+    String whereEqual(List<Object> values) {
+        values.add(Status.IN);
+        return COL_STATUS + " != ?";
+    }
+
     @Override
     public int hashCode() {
         int hash = this.abstractHashCode();
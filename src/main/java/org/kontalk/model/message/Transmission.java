@@ -20,10 +20,7 @@ package org.kontalk.model.message;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -67,6 +64,12 @@ final public class Transmission {
             "FOREIGN KEY ("+COL_MESSAGE_ID+") REFERENCES "+KonMessage.TABLE+" (_id) " +
             "FOREIGN KEY ("+COL_CONTACT_ID+") REFERENCES "+Contact.TABLE+" (_id) " +
             ")";
+    // lookup by message; covers the columns of whereEqual()
+    public static final String INDEX_MESSAGE =
+            "(" + COL_MESSAGE_ID + ", " + COL_CONTACT_ID + ", " + COL_JID + ")";
+
+    private static final Database.Insert INSERT = new Database.Insert(TABLE, 4);
+    private static final Database.Update UPDATE = new Database.Update(TABLE, COL_REC_DATE);
 
     private final int mID;
 
@@ -111,13 +114,11 @@ final public class Transmission {
     }
 
     private int insert(int messageID) {
-        List<Object> values = Arrays.asList(
+        int id = Model.database().execInsert(INSERT,
                 messageID,
                 mContact.getID(),
                 mJID,
                 mReceivedDate);
-
-        int id = Model.database().execInsert(TABLE, values);
         if (id <= 0) {
             LOGGER.log(Level.WARNING, "could not insert");
             return -2;
@@ -126,9 +127,7 @@ final public class Transmission {
     }
 
     private void save() {
-        Map<String, Object> set = new HashMap<>();
-        set.put(COL_REC_DATE, mReceivedDate);
-        Model.database().execUpdate(TABLE, set, mID);
+        Model.database().execUpdate(UPDATE, mID, mReceivedDate);
     }
 
     boolean delete() {
@@ -144,20 +143,74 @@ final public class Transmission {
         return "T:id="+mID+",contact="+mContact+",jid="+mJID+",recdate="+mReceivedDate;
     }
 
-    static Set<Transmission> load(int messageID, Map<Integer, Contact> contactMap) {
-        HashSet<Transmission> ts = new HashSet<>();
-        try (ResultSet transmissionRS = Model.database().execSelectWhereInsecure(TABLE,
-                COL_MESSAGE_ID + " == " + messageID)) {
-            while (transmissionRS.next()) {
-                ts.add(load(transmissionRS, contactMap));
+    /**
+     * Select of all transmissions of messages selected by an ID subquery,
+     * ordered by message ID.
+     */
+    static String selectForMessages(String idSelect) {
+        return "SELECT * FROM " + TABLE +
+                " WHERE " + COL_MESSAGE_ID + " IN (" + idSelect + ")" +
+                " ORDER BY " + COL_MESSAGE_ID;
+    }
+
+    /** Select of the IDs of all messages with a transmission to or from a contact. */
+    static String selectMessageIDs(Contact contact) {
+        return "SELECT " + COL_MESSAGE_ID + " FROM " + TABLE +
+                " WHERE " + COL_CONTACT_ID + " == " + contact.getID();
+    }
+
+    /**
+     * Condition for messages that have a transmission equal to this one.
+     * Values for the parameters are added.
+     * @param messageIDColumn the (qualified) ID column of messages
+     */
+    String whereEqual(String messageIDColumn, List<Object> values) {
+        values.add(mContact.getID());
+        values.add(mJID);
+        return "EXISTS (SELECT 1 FROM " + TABLE +
+                " WHERE " + COL_MESSAGE_ID + " == " + messageIDColumn +
+                " AND " + COL_CONTACT_ID + " == ? AND " + COL_JID + " == ?)";
+    }
+
+    /** Delete all transmissions of messages selected by an ID subquery. Not commited! */
+    static boolean deleteForMessages(Database db, String idSelect) {
+        return db.execDeleteWhereInsecure(TABLE, COL_MESSAGE_ID + " IN (" + idSelect + ")");
+    }
+
+    /**
+     * Merges transmission rows ordered by message ID against messages loaded
+     * in the same order; all transmissions are read in one pass.
+     */
+    static final class Merger {
+        private final ResultSet mResultSet;
+        private final Map<Integer, Contact> mContactMap;
+        private boolean mHasRow;
+
+        Merger(ResultSet resultSet, Map<Integer, Contact> contactMap) throws SQLException {
+            mResultSet = resultSet;
+            mContactMap = contactMap;
+            mHasRow = mResultSet.next();
+        }
+
+        /** Get transmissions of the next message, IDs must be ascending. */
+        Set<Transmission> next(int messageID) throws SQLException {
+            HashSet<Transmission> ts = new HashSet<>();
+            while (mHasRow) {
+                int rowMessageID = mResultSet.getInt(COL_MESSAGE_ID);
+                if (rowMessageID > messageID)
+                    break;
+
+                if (rowMessageID == messageID) {
+                    Transmission t = load(mResultSet, mContactMap);
+                    if (t != null)
+                        ts.add(t);
+                }
+                mHasRow = mResultSet.next();
             }
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't load transmission(s) from db", ex);
-            return Collections.emptySet();
+            if (ts.isEmpty())
+                LOGGER.warning("no transmission(s) found, messageID: "+messageID);
+            return ts;
         }
-        if (ts.isEmpty())
-            LOGGER.warning("no transmission(s) found, messageID: "+messageID);
-        return ts;
     }
 
     private static Transmission load(ResultSet resultSet,
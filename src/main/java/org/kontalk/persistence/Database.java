@@ -27,14 +27,18 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import org.apache.commons.lang.StringUtils;
 import org.kontalk.misc.JID;
 import org.kontalk.misc.KonException;
@@ -50,9 +54,15 @@ import org.sqlite.SQLiteConfig;
  * Global database for permanently storing all model information.
  * Uses the JDBC API and SQLite as DBMS.
  *
- * Database access is not concurrent safe (connection pool is needed). At least
- * writing is synchronized. Hopefully we don't see this no more:
- * "SQLException: ResultSet already requested" or "ResultSet closed"
+ * The database is journaled in WAL mode: all writing is done (synchronized)
+ * over one writer connection, selects use a small pool of read-only
+ * connections and never block or get blocked by writes.
+ *
+ * Inserts and updates are not committed
+ * immediately but collected into one transaction that is committed after a
+ * short time window or when enough writes are pending (group commit).
+ * Note that readers only see committed changes, selects that must see
+ * pending writes are done on the writer connection.
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
@@ -62,12 +72,29 @@ public final class Database {
     public static final String SQL_ID = "_id INTEGER PRIMARY KEY AUTOINCREMENT, ";
 
     private static final String FILENAME = "kontalk_db.sqlite";
-    private static final int DB_VERSION = 5;
+    private static final int DB_VERSION = 9;
     private static final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS ";
+    private static final String SQL_CREATE_INDEX = "CREATE INDEX IF NOT EXISTS ";
+    private static final String SQL_CREATE_VIRTUAL = "CREATE VIRTUAL TABLE IF NOT EXISTS ";
     private static final String SV = "schema_version";
     private static final String UV = "user_version";
+    private static final int READ_POOL_SIZE = 3;
+    private static final int GROUP_COMMIT_DELAY = 100; // milliseconds
+    private static final int GROUP_COMMIT_SIZE = 500;
+    private static final int LARGE_DB_MESSAGES = 10000;
+    private static final int UPDATE_REPORT_INTERVAL = 5; // seconds
+
+    private final Timer mCommitTimer = new Timer("DB Commit Timer", true);
 
     private Connection mConn = null;
+    private ReadPool mReadPool = null;
+    // prepared statements on writer connection, by SQL
+    private final Map<String, PreparedStatement> mStatementCache = new HashMap<>();
+
+    private int mPendingWrites = 0;
+    private TimerTask mScheduledCommit = null;
+    private volatile String mUpdateStep = "";
+    private boolean mSearchEnabled = false;
 
     public Database(Path appDir) throws KonException {
         // load the sqlite-JDBC driver using the current class loader
@@ -78,12 +105,13 @@ public final class Database {
             throw new KonException(KonException.Error.DB, ex);
         }
 
-        // create database connection
-        Path path = appDir.resolve(FILENAME);
+        // create database (writer) connection
+        String url = "jdbc:sqlite:" + appDir.resolve(FILENAME).toString();
         SQLiteConfig config = new SQLiteConfig();
         config.enforceForeignKeys(true);
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
         try {
-          mConn = DriverManager.getConnection("jdbc:sqlite:" + path.toString(), config.toProperties());
+          mConn = DriverManager.getConnection(url, config.toProperties());
         } catch(SQLException ex) {
           // if the error message is "out of memory",
           // it probably means no database file is found
@@ -98,8 +126,21 @@ public final class Database {
             LOGGER.log(Level.WARNING, "can't set autocommit", ex);
         }
 
+        this.init();
+        this.initSearch();
+
+        // readers are opened after the schema is created/updated
+        try {
+            mReadPool = new ReadPool(url, READ_POOL_SIZE);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, "can't create read connections", ex);
+            throw new KonException(KonException.Error.DB, ex);
+        }
+    }
+
+    private void init() throws KonException {
         boolean isNew;
-        try (ResultSet rs = this.execQuery("PRAGMA "+SV)) {
+        try (ResultSet rs = this.execWriterQuery("PRAGMA "+SV)) {
             isNew = rs.getInt(SV) == 0;
         } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "can't get schema version", ex);
@@ -117,6 +158,7 @@ public final class Database {
                 this.createTable(stat, Member.TABLE, Member.SCHEMA);
                 this.createTable(stat, KonMessage.TABLE, KonMessage.SCHEMA);
                 this.createTable(stat, Transmission.TABLE, Transmission.SCHEMA);
+                this.createIndexes(stat);
             } catch (SQLException ex) {
                 LOGGER.log(Level.SEVERE, "can't create tables", ex);
                 throw new KonException(KonException.Error.DB, ex);
@@ -126,7 +168,7 @@ public final class Database {
 
         // update if needed
         int version;
-        try (ResultSet rs = this.execQuery("PRAGMA "+UV)) {
+        try (ResultSet rs = this.execWriterQuery("PRAGMA "+UV)) {
             version = rs.getInt(UV);
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't get db version", ex);
@@ -142,11 +184,86 @@ public final class Database {
         }
     }
 
+    /**
+     * Create the full-text search table if not existing; the table is
+     * populated by the model.
+     */
+    private void initSearch() {
+        try (Statement stat = mConn.createStatement()) {
+            stat.executeUpdate(SQL_CREATE_VIRTUAL + KonMessage.SEARCH_TABLE + " " +
+                    KonMessage.SEARCH_SCHEMA);
+            this.commit();
+        } catch (SQLException ex) {
+            // SQLite compiled without FTS5?
+            LOGGER.log(Level.WARNING, "can't create full-text search table", ex);
+            return;
+        }
+        mSearchEnabled = true;
+    }
+
+    /** Return if the full-text search table for messages is available. */
+    public boolean isSearchEnabled() {
+        return mSearchEnabled;
+    }
+
     private void createTable(Statement stat, String table, String schema) throws SQLException {
         stat.executeUpdate(SQL_CREATE + table + " " + schema);
     }
 
+    private void createIndexes(Statement stat) throws SQLException {
+        this.createIndex(stat, KonMessage.TABLE, "chat", KonMessage.INDEX_CHAT);
+        this.createIndex(stat, KonMessage.TABLE, "xmpp_id", KonMessage.INDEX_XMPP_ID);
+        this.createIndex(stat, Transmission.TABLE, "message", Transmission.INDEX_MESSAGE);
+        this.createIndex(stat, KonMessage.TABLE, "pending", KonMessage.INDEX_PENDING);
+        // note: members are looked up by chat using the UNIQUE (chat, contact) index
+    }
+
+    private void dropIndex(Statement stat, String table, String name) throws SQLException {
+        stat.executeUpdate("DROP INDEX IF EXISTS " + table + "_" + name);
+    }
+
+    private void createIndex(Statement stat, String table, String name, String columns)
+            throws SQLException {
+        mUpdateStep = "index " + table + "_" + name;
+        long start = System.currentTimeMillis();
+        stat.executeUpdate(SQL_CREATE_INDEX + table + "_" + name + " ON " + table + " " + columns);
+        LOGGER.config("created index " + table + "_" + name + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private int countRows(String table) throws SQLException {
+        try (ResultSet rs = this.execWriterQuery("SELECT COUNT(*) FROM " + table)) {
+            return rs.getInt(1);
+        }
+    }
+
     private void update(int fromVersion) throws SQLException {
+        int messages = this.countRows(KonMessage.TABLE);
+        if (messages > LARGE_DB_MESSAGES)
+            LOGGER.info("large database ("+messages+" messages), update may take a while");
+
+        // report progress if the update is slow
+        long start = System.currentTimeMillis();
+        TimerTask report = new TimerTask() {
+            @Override
+            public void run() {
+                LOGGER.info("database update in progress (" + mUpdateStep + "), "
+                        + (System.currentTimeMillis() - start) / 1000 + " s elapsed");
+            }
+        };
+        long interval = TimeUnit.SECONDS.toMillis(UPDATE_REPORT_INTERVAL);
+        mCommitTimer.schedule(report, interval, interval);
+        try {
+            this.update(fromVersion, messages);
+        } finally {
+            report.cancel();
+        }
+        LOGGER.info("updated to version " + DB_VERSION + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void update(int fromVersion, int messages) throws SQLException {
+        mUpdateStep = "version " + fromVersion + " to " + DB_VERSION;
         if (fromVersion < 1) {
             mConn.createStatement().execute("ALTER TABLE "+Chat.TABLE+
                     " ADD COLUMN "+Chat.COL_VIEW_SET+" NOT NULL DEFAULT '{}'");
@@ -184,17 +301,50 @@ public final class Database {
             mConn.createStatement().execute("ALTER TABLE "+Member.TABLE+
                     " ADD COLUMN "+Member.COL_ROLE+" DEFAULT 0");
         }
+        if (fromVersion < 6) {
+            LOGGER.info("creating indexes for "+messages+" messages");
+            try (Statement stat = mConn.createStatement()) {
+                this.createIndexes(stat);
+            }
+        }
+        if (fromVersion < 7) {
+            try (Statement stat = mConn.createStatement()) {
+                this.createIndex(stat, KonMessage.TABLE, "pending", KonMessage.INDEX_PENDING);
+            }
+        }
+        if (fromVersion < 8) {
+            mConn.createStatement().execute("ALTER TABLE "+Chat.TABLE+
+                    " ADD COLUMN "+Chat.COL_UNREAD+" INTEGER NOT NULL DEFAULT 0");
+            // exact number is unknown
+            mConn.createStatement().execute("UPDATE "+Chat.TABLE+
+                    " SET "+Chat.COL_UNREAD+" = 1 WHERE "+Chat.COL_READ+" == 0");
+        }
+        if (fromVersion >= 6 && fromVersion < 9) {
+            // indexes of version 6 did not cover the selected columns
+            try (Statement stat = mConn.createStatement()) {
+                this.dropIndex(stat, KonMessage.TABLE, "chat");
+                this.dropIndex(stat, KonMessage.TABLE, "xmpp_id");
+                this.dropIndex(stat, Transmission.TABLE, "message");
+                this.createIndexes(stat);
+            }
+        }
 
         // set new version
         mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
         this.commit();
-        LOGGER.info("updated to version "+DB_VERSION);
     }
 
     public synchronized void close() {
+        mCommitTimer.cancel();
+        if (mReadPool != null)
+            mReadPool.close();
+
         try {
             if(mConn == null || mConn.isClosed())
                 return;
+            for (PreparedStatement stat : mStatementCache.values())
+                stat.close();
+            mStatementCache.clear();
             // just to be sure
             mConn.commit();
             mConn.close();
@@ -220,75 +370,188 @@ public final class Database {
         return this.execQuery("SELECT * FROM " + table + " WHERE " + where);
     }
 
+    /**
+     * Select rows from one table that match an arbitrary 'where' clause,
+     * sorted by an arbitrary 'order by' clause.
+     * Insecure to SQL injections, use with caution!
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelectWhereInsecure(String table, String where, String orderBy)
+            throws SQLException {
+        return this.execQuery("SELECT * FROM " + table + " WHERE " + where +
+                " ORDER BY " + orderBy);
+    }
+
     private ResultSet execQuery(String select) throws SQLException {
+        try {
+            return mReadPool.query(select);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
+            throw ex;
+        }
+    }
+
+    /** Query on the writer connection, only used for schema handling. */
+    private ResultSet execWriterQuery(String select) throws SQLException {
         try {
             PreparedStatement stat = mConn.prepareStatement(select);
             // does not work, i dont care
             //stat.closeOnCompletion();
-            ResultSet resultSet = stat.executeQuery();
-            return resultSet;
+            return stat.executeQuery();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
             throw ex;
         }
     }
 
+    /**
+     * Execute an arbitrary select with values for all '?' parameters.
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelect(String select, List<Object> values) throws SQLException {
+        try {
+            return mReadPool.query(select, values);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select + " " + values, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Execute a select with values for all '?' parameters on the writer
+     * connection. Unlike selects on the read connections, writes that are not
+     * committed yet are visible; nothing is committed.
+     * The writer is locked while the result is handled, only for small selects.
+     */
+    public synchronized <T> T execWriterSelect(String select, List<Object> values,
+            ResultHandler<T> handler) throws SQLException {
+        try (PreparedStatement stat = mConn.prepareStatement(select)) {
+            insertValues(stat, values);
+            try (ResultSet resultSet = stat.executeQuery()) {
+                return handler.handle(resultSet);
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select + " " + values, ex);
+            throw ex;
+        }
+    }
+
     /**
      * Add a new model / row to database.
      * @param table table name the values are inserted into
      * @param values all objects / row fields that to insert
      * @return id value of inserted row, -1 if something went wrong
      */
-    public synchronized int execInsert(String table, List<Object> values) {
-        // first column is the id
-        String insert = "INSERT INTO " + table + " VALUES (NULL,";
+    public int execInsert(String table, List<Object> values) {
+        return this.execInsert(new Insert(table, values.size()), values.toArray());
+    }
 
-        List<String> vList = new ArrayList<>(values.size());
-        while(vList.size() < values.size())
+    /**
+     * Add a new model / row to database using a prepared insert.
+     * @return id value of inserted row, -1 if something went wrong
+     */
+    public synchronized int execInsert(Insert insert, Object... values) {
+        try {
+            PreparedStatement stat = this.prepare(insert.mSQL, true);
+            insertValues(stat, Arrays.asList(values));
+            stat.executeUpdate();
+            // ID is generated even if not committed yet
+            int id;
+            try (ResultSet keys = stat.getGeneratedKeys()) {
+                id = keys.getInt(1);
+            }
+            this.written();
+            return id;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute insert: " + insert.mSQL + " " +
+                    Arrays.toString(values), ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Insert or replace a row with a given row ID. All columns are set
+     * explicitly, used for virtual (full-text search) tables.
+     */
+    public synchronized void execReplace(String table, int rowID, Map<String, Object> set) {
+        List<String> keyList = new ArrayList<>(set.keySet());
+
+        List<String> vList = new ArrayList<>(keyList.size());
+        while(vList.size() < keyList.size())
             vList.add("?");
 
-        insert += StringUtils.join(vList, ", ") + ")";
+        String delete = "DELETE FROM " + table + " WHERE rowid == ?";
+        String insert = "INSERT INTO " + table + " (rowid, " + StringUtils.join(keyList, ", ") +
+                ") VALUES (?, " + StringUtils.join(vList, ", ") + ")";
 
-        try (PreparedStatement stat = mConn.prepareStatement(insert,
-                Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement delStat = this.prepare(delete, false);
+            delStat.setInt(1, rowID);
+            delStat.executeUpdate();
+
+            List<Object> values = new ArrayList<>(keyList.size() + 1);
+            values.add(rowID);
+            keyList.forEach(key -> values.add(set.get(key)));
+            PreparedStatement stat = this.prepare(insert, false);
             insertValues(stat, values);
             stat.executeUpdate();
-            mConn.commit();
-            ResultSet keys = stat.getGeneratedKeys();
-            return keys.getInt(1);
+            this.written();
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't execute insert: " + insert + " " + values, ex);
-            return -1;
+            LOGGER.log(Level.WARNING, "can't execute replace: " + insert + " " + set, ex);
         }
     }
 
     /** Update values (at most one row). */
-    public synchronized void execUpdate(String table, Map<String, Object> set, int id) {
-        LOGGER.config("table: "+table);
-        String update = "UPDATE OR FAIL " + table + " SET ";
-
+    public void execUpdate(String table, Map<String, Object> set, int id) {
         List<String> keyList = new ArrayList<>(set.keySet());
+        Object[] values = keyList.stream().map(set::get).toArray();
+        this.execUpdate(new Update(table, keyList.toArray(new String[0])), id, values);
+    }
 
-        List<String> vList = keyList.stream()
-                .map(key -> key + " = ?")
-                .collect(Collectors.toList());
+    /** Update values (at most one row) using a prepared update. */
+    public synchronized void execUpdate(Update update, int id, Object... values) {
+        try {
+            PreparedStatement stat = this.prepare(update.mSQL, false);
+            insertValues(stat, Arrays.asList(values));
+            setValue(stat, values.length, id);
+            stat.executeUpdate();
+            this.written();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute update: " + update.mSQL + " " +
+                    Arrays.toString(values), ex);
+        }
+    }
 
-        update += StringUtils.join(vList, ", ") + " WHERE _id == " + id ;
-        // note: looks like driver doesn't support "LIMIT"
-        //update += " LIMIT 1";
+    /** Get a cached prepared statement on the writer connection. */
+    private PreparedStatement prepare(String sql, boolean generatedKeys) throws SQLException {
+        PreparedStatement stat = mStatementCache.get(sql);
+        if (stat == null) {
+            stat = generatedKeys ?
+                    mConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+                    mConn.prepareStatement(sql);
+            mStatementCache.put(sql, stat);
+        }
+        return stat;
+    }
 
-        try (PreparedStatement stat = mConn.prepareStatement(update, Statement.RETURN_GENERATED_KEYS)) {
-            insertValues(stat, keyList, set);
-            stat.executeUpdate();
-            mConn.commit();
-            stat.getGeneratedKeys();
+    /**
+     * Delete rows that match an arbitrary 'where' clause.
+     * Insecure to SQL injections, use with caution!
+     * Not commited! Call commit() after deletions.
+     */
+    public synchronized boolean execDeleteWhereInsecure(String table, String where) {
+        LOGGER.info("deletion, table: " + table + "; where: " + where);
+        try (Statement stat = mConn.createStatement()) {
+            stat.executeUpdate("DELETE FROM " + table + " WHERE " + where);
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't execute update: " + update + " " + set, ex);
+            LOGGER.log(Level.WARNING, "can't delete", ex);
+            return false;
         }
+        return true;
     }
 
     /** Delete one row. Not commited! Call commit() after deletions. */
-    public boolean execDelete(String table, int id) {
+    public synchronized boolean execDelete(String table, int id) {
         LOGGER.info("deletion, table: " + table + "; id: " + id);
         try (Statement stat = mConn.createStatement()) {
             stat.executeUpdate("DELETE FROM " + table + " WHERE _id = " + id);
@@ -299,7 +562,13 @@ public final class Database {
         return true;
     }
 
-    public boolean commit() {
+    public synchronized boolean commit() {
+        if (mScheduledCommit != null) {
+            mScheduledCommit.cancel();
+            mScheduledCommit = null;
+        }
+        mPendingWrites = 0;
+
         try {
             mConn.commit();
         } catch (SQLException ex) {
@@ -309,15 +578,33 @@ public final class Database {
         return true;
     }
 
-    private static void insertValues(PreparedStatement stat,
-            List<String> keys,
-            Map<String, Object> map) throws SQLException {
-        for (int i = 0; i < keys.size(); i++) {
-            setValue(stat, i, map.get(keys.get(i)));
-         }
+    /**
+     * Commit all pending writes now. Returns when all previous writes are
+     * persisted and visible to readers.
+     */
+    public boolean flush() {
+        return this.commit();
+    }
+
+    private void written() {
+        if (++mPendingWrites >= GROUP_COMMIT_SIZE) {
+            this.commit();
+            return;
+        }
+
+        if (mScheduledCommit != null)
+            return;
+
+        mScheduledCommit = new TimerTask() {
+            @Override
+            public void run() {
+                Database.this.commit();
+            }
+        };
+        mCommitTimer.schedule(mScheduledCommit, GROUP_COMMIT_DELAY);
     }
 
-    private static void insertValues(PreparedStatement stat,
+    static void insertValues(PreparedStatement stat,
             List<Object> values) throws SQLException {
         for (int i = 0; i < values.size(); i++) {
             setValue(stat, i, values.get(i));
@@ -330,6 +617,8 @@ public final class Database {
                 stat.setString(i+1, (String) value);
             } else if (value instanceof Integer) {
                 stat.setInt(i+1, (int) value);
+            } else if (value instanceof Long) {
+                stat.setLong(i+1, (long) value);
             } else if (value instanceof Date) {
                 stat.setLong(i+1, ((Date) value).getTime());
             } else if (value instanceof Boolean) {
@@ -340,6 +629,8 @@ public final class Database {
                 stat.setInt(i+1, EncodingUtils.enumSetToInt(((EnumSet) value)));
             } else if (value instanceof Optional) {
                 setValue(stat, i, ((Optional<?>) value).orElse(null));
+            } else if (value instanceof byte[]) {
+                stat.setBytes(i+1, (byte[]) value);
             } else if (value instanceof JID) {
                 stat.setString(i+1, ((JID) value).string());
             } else if (value == null) {
@@ -364,7 +655,49 @@ public final class Database {
         return StringUtils.defaultString(s);
     }
 
+    /**
+     * An insert of all columns into a table (except the id).
+     * Create once and reuse, the statement is cached by the database.
+     */
+    public static final class Insert {
+        private final String mSQL;
+
+        public Insert(String table, int columns) {
+            // first column is the id
+            mSQL = "INSERT INTO " + table + " VALUES (NULL, " +
+                    StringUtils.repeat("?", ", ", columns) + ")";
+        }
+    }
+
+    /**
+     * An update of fixed columns of one row in a table.
+     * Create once and reuse, the statement is cached by the database.
+     */
+    public static final class Update {
+        private final String mSQL;
+
+        public Update(String table, String... columns) {
+            // note: looks like driver doesn't support "LIMIT"
+            this("UPDATE OR FAIL " + table + " SET " +
+                    StringUtils.join(columns, " = ?, ") + " = ? WHERE _id == ?");
+        }
+
+        private Update(String sql) {
+            mSQL = sql;
+        }
+
+        /** Same update, only if the row also matches a condition (insecure!). */
+        public Update where(String condition) {
+            return new Update(mSQL + " AND (" + condition + ")");
+        }
+    }
+
     public static String setString(String s) {
         return s.isEmpty() ? null : s;
     }
+
+    /** Handles the result of a select, the result set is closed afterwards. */
+    public interface ResultHandler<T> {
+        T handle(ResultSet resultSet) throws SQLException;
+    }
 }
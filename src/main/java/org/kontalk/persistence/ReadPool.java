@@ -0,0 +1,170 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.persistence;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * A small pool of read-only connections to the (WAL journaled) database.
+ *
+ * A thread keeps the same connection for all nested queries until its last
+ * result set is closed; the connection is then returned to the pool.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReadPool {
+    private static final Logger LOGGER = Logger.getLogger(ReadPool.class.getName());
+
+    private static final int ACQUIRE_TIMEOUT = 30; // seconds
+
+    private final List<Connection> mConnections;
+    private final BlockingQueue<Connection> mIdle;
+    private final ThreadLocal<Lease> mLease = new ThreadLocal<>();
+
+    private static final class Lease {
+        private final Connection conn;
+        private int count = 0;
+
+        private Lease(Connection conn) {
+            this.conn = conn;
+        }
+    }
+
+    ReadPool(String url, int size) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+
+        mConnections = new ArrayList<>(size);
+        mIdle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection conn = DriverManager.getConnection(url, config.toProperties());
+            mConnections.add(conn);
+            mIdle.add(conn);
+        }
+    }
+
+    /**
+     * Execute a query on a pooled connection.
+     * The connection is released when the returned ResultSet is closed.
+     */
+    ResultSet query(String select) throws SQLException {
+        return this.query(select, Collections.emptyList());
+    }
+
+    /** Execute a query with values for all '?' parameters. */
+    ResultSet query(String select, List<Object> values) throws SQLException {
+        Lease lease = this.acquire();
+        try {
+            PreparedStatement stat = lease.conn.prepareStatement(select);
+            Database.insertValues(stat, values);
+            ResultSet resultSet = stat.executeQuery();
+            return this.wrap(resultSet, stat, lease);
+        } catch (SQLException ex) {
+            this.release(lease);
+            throw ex;
+        }
+    }
+
+    private Lease acquire() throws SQLException {
+        Lease lease = mLease.get();
+        if (lease != null) {
+            synchronized (lease) {
+                if (lease.count > 0) {
+                    lease.count++;
+                    return lease;
+                }
+            }
+        }
+
+        Connection conn;
+        try {
+            conn = mIdle.poll(ACQUIRE_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for connection", ex);
+        }
+        if (conn == null)
+            throw new SQLException("no read connection available");
+
+        lease = new Lease(conn);
+        lease.count = 1;
+        mLease.set(lease);
+        return lease;
+    }
+
+    private void release(Lease lease) {
+        synchronized (lease) {
+            if (--lease.count > 0)
+                return;
+        }
+        mIdle.add(lease.conn);
+    }
+
+    /** Close the statement and release the connection together with the result set. */
+    private ResultSet wrap(ResultSet resultSet, PreparedStatement stat, Lease lease) {
+        boolean[] closed = {false};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                        synchronized (closed) {
+                            if (closed[0])
+                                return null;
+                            closed[0] = true;
+                        }
+                        try {
+                            stat.close();
+                        } finally {
+                            this.release(lease);
+                        }
+                        return null;
+                    }
+                    try {
+                        return method.invoke(resultSet, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                });
+    }
+
+    void close() {
+        for (Connection conn : mConnections) {
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't close read connection", ex);
+            }
+        }
+    }
+}
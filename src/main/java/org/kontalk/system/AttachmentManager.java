@@ -23,18 +23,23 @@ import static org.kontalk.util.MediaUtils.isImage;
 import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.kontalk.client.Client;
 import org.kontalk.client.HTTPFileClient;
@@ -73,6 +78,8 @@ public class AttachmentManager implements Runnable {
     public static final String ENCRYPT_PREFIX = "encrypted_";
     public static final int MAX_ATT_SIZE = 20 * 1024 * 1024;
 
+    private static final int BUFFER_SIZE = 1 << 16;
+
     public static class Slot {
         final URI uploadURL;
         final URI downloadURL;
@@ -95,6 +102,8 @@ public class AttachmentManager implements Runnable {
     private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<>();
     private final Path mAttachmentDir;
     private final Path mPreviewDir;
+    // try encrypted upload without temporary file, until the server refuses it
+    private volatile boolean mChunkedUpload = true;
 
     private static class Task {
 
@@ -206,6 +215,17 @@ public class AttachmentManager implements Runnable {
 
         // if text will be encrypted, always encrypt attachment too
         boolean encrypt = message.getCoderStatus().getEncryption() == Encryption.DECRYPTED;
+        if (encrypt && mChunkedUpload) {
+            StreamedUpload result = this.uploadStreamed(message, file, uploadName, mime);
+            if (result != StreamedUpload.UNSUPPORTED) {
+                if (!file.equals(original))
+                    delete(file);
+                return;
+            }
+            // server rejects chunked upload, use temporary file from now on
+            mChunkedUpload = false;
+        }
+
         if (encrypt) {
             PersonalKey myKey = mControl.myKey().orElse(null);
             File encryptFile = myKey == null ?
@@ -225,25 +245,86 @@ public class AttachmentManager implements Runnable {
             return;
 
         long length = file.length();
-        Slot uploadSlot = mClient.getUploadSlot(uploadName, length, mime);
-        if (uploadSlot.uploadURL.toString().isEmpty() ||
-                uploadSlot.downloadURL.toString().isEmpty()) {
-            LOGGER.warning("empty slot: "+attachment);
+        Slot uploadSlot = this.uploadSlotOrNull(attachment, uploadName, length, mime);
+        if (uploadSlot == null)
             return;
-        }
 
         try {
             client.upload(file, uploadSlot.uploadURL, mime, encrypt);
         } catch (KonException ex) {
-            LOGGER.warning("upload failed, attachment: "+attachment);
-            message.setStatus(KonMessage.Status.ERROR);
-            mControl.onException(ex);
+            this.onUploadFailed(message, ex);
             return;
         }
 
         if (!file.equals(original))
             delete(file);
 
+        this.onUploaded(message, attachment, uploadSlot, mime, length);
+    }
+
+    private enum StreamedUpload {DONE, FAILED, UNSUPPORTED}
+
+    /** Encrypt and upload in one pass, without temporary file. */
+    private StreamedUpload uploadStreamed(OutMessage message, File file, String uploadName,
+            String mime) {
+        OutAttachment attachment = message.getContent().getOutAttachment().orElse(null);
+        PersonalKey myKey = mControl.myKey().orElse(null);
+        if (attachment == null || myKey == null)
+            return StreamedUpload.FAILED;
+
+        Coder.StreamWriter writer = Coder.attachmentWriter(myKey, message, file).orElse(null);
+        if (writer == null)
+            return StreamedUpload.FAILED;
+
+        HTTPFileClient client = this.clientOrNull();
+        if (client == null)
+            return StreamedUpload.FAILED;
+
+        // encrypted length is unknown before upload, request slot with plain length
+        Slot uploadSlot = this.uploadSlotOrNull(attachment, uploadName, file.length(), mime);
+        if (uploadSlot == null)
+            return StreamedUpload.FAILED;
+
+        // the producer may run again if the request is retried
+        AtomicLong written = new AtomicLong();
+        try {
+            boolean uploaded = client.uploadChunked(out -> {
+                        CountingOutputStream countingOut = new CountingOutputStream(out);
+                        writer.writeTo(countingOut);
+                        countingOut.flush();
+                        written.set(countingOut.getByteCount());
+                    },
+                    uploadSlot.uploadURL, mime, true);
+            if (!uploaded)
+                return StreamedUpload.UNSUPPORTED;
+        } catch (KonException ex) {
+            this.onUploadFailed(message, ex);
+            return StreamedUpload.FAILED;
+        }
+
+        this.onUploaded(message, attachment, uploadSlot, mime, written.get());
+        return StreamedUpload.DONE;
+    }
+
+    private Slot uploadSlotOrNull(OutAttachment attachment, String uploadName, long length,
+            String mime) {
+        Slot uploadSlot = mClient.getUploadSlot(uploadName, length, mime);
+        if (uploadSlot.uploadURL.toString().isEmpty() ||
+                uploadSlot.downloadURL.toString().isEmpty()) {
+            LOGGER.warning("empty slot: "+attachment);
+            return null;
+        }
+        return uploadSlot;
+    }
+
+    private void onUploadFailed(OutMessage message, KonException ex) {
+        LOGGER.warning("upload failed, attachment: "+message.getContent().getAttachment());
+        message.setStatus(KonMessage.Status.ERROR);
+        mControl.onException(ex);
+    }
+
+    private void onUploaded(OutMessage message, OutAttachment attachment, Slot uploadSlot,
+            String mime, long length) {
         attachment.setUploaded(uploadSlot.downloadURL, mime, length);
 
         LOGGER.info("upload successful, URL="+uploadSlot.downloadURL);
@@ -271,9 +352,24 @@ public class AttachmentManager implements Runnable {
             }
         };
 
+        // decrypt while downloading; if decryption fails the encrypted data
+        // is kept
+        PersonalKey myKey = mControl.myKey().orElse(null);
+        AtomicBoolean decrypted = new AtomicBoolean(false);
+        HTTPFileClient.ContentHandler handler = (content, file) -> {
+            InputStream in = new BufferedInputStream(content, BUFFER_SIZE);
+            if (myKey == null || !PGPUtils.isEncryptedStream(in)) {
+                return HTTPFileClient.saveToFile(in, file);
+            }
+            Path plainPath = Coder.decryptAttachment(myKey, attachment, message.getContact(),
+                    in, file);
+            decrypted.set(true);
+            return plainPath;
+        };
+
         Path path;
         try {
-            path = client.download(attachment.getURL(), mAttachmentDir, listener);
+            path = client.download(attachment.getURL(), mAttachmentDir, listener, handler);
         } catch (KonException ex) {
             LOGGER.warning("download failed, URL="+attachment.getURL());
             mControl.onException(ex);
@@ -285,19 +381,19 @@ public class AttachmentManager implements Runnable {
             return;
         }
 
-        boolean encrypted = PGPUtils.isEncryptedFile(path);
-        if (encrypted) {
-            path = MediaUtils.renameFile(path,
-                    AttachmentManager.ENCRYPT_PREFIX + path.getFileName().toString());
-        }
-
-        LOGGER.info("successful, saved to file: "+path);
-        attachment.setFile(path.getFileName().toString(), encrypted);
+        if (decrypted.get()) {
+            // file is already set
+            LOGGER.info("successful, saved to file: "+path);
+        } else {
+            // plain data or no key for decryption
+            boolean encrypted = PGPUtils.isEncryptedFile(path);
+            if (encrypted) {
+                path = MediaUtils.renameFile(path,
+                        AttachmentManager.ENCRYPT_PREFIX + path.getFileName().toString());
+            }
 
-        if (encrypted) {
-            // decrypt file
-            mControl.myKey().ifPresent(mk ->
-                    Coder.decryptAttachment(mk, attachment, message.getContact()));
+            LOGGER.info("successful, saved to file: "+path);
+            attachment.setFile(path.getFileName().toString(), encrypted);
         }
 
         // create preview if not in message
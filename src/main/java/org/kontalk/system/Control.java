@@ -26,6 +26,7 @@ import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Observable;
@@ -97,6 +98,9 @@ public final class Control {
 
     /** Interval between retry connection attempts after failure. */
     private static final int RETRY_TIMER_INTERVAL = 20; // seconds
+    /** Pending messages are resent in batches after connecting. */
+    private static final int OUTBOX_BATCH_SIZE = 20;
+    private static final int OUTBOX_BATCH_INTERVAL = 1000; // milliseconds
 
     private final ViewControl mViewControl;
 
@@ -108,9 +112,11 @@ public final class Control {
     private final RosterHandler mRosterHandler;
     private final AvatarHandler mAvatarHandler;
     private final GroupControl mGroupControl;
+    private final InMessagePipeline mInPipeline;
 
     private boolean mShuttingDown = false;
     private Timer mRetryTimer = null;
+    private Timer mOutboxTimer = null;
 
     public Control(Path appDir) throws KonException {
         mViewControl = new ViewControl();
@@ -132,12 +138,23 @@ public final class Control {
         mRosterHandler = new RosterHandler(this, mClient, mModel);
         mAvatarHandler = new AvatarHandler(mClient, mModel);
         mGroupControl = new GroupControl(this, mModel);
+        mInPipeline = new InMessagePipeline();
     }
 
     public void launch(boolean ui) {
 
         mModel.load();
 
+        // parse keys before the first message needs them
+        Thread keyThread = new Thread("Key Cache Warm-Up") {
+            @Override
+            public void run() {
+                Coder.warmUpKeyCache(mModel.contacts().getAll(false, true));
+            }
+        };
+        keyThread.setDaemon(true);
+        keyThread.start();
+
         if (ui) {
             View view = View.create(mViewControl, mModel).orElse(null);
             if (view == null) {
@@ -171,7 +188,9 @@ public final class Control {
         mViewControl.changed(new ViewEvent.StatusChange(Status.SHUTTING_DOWN,
                 EnumSet.noneOf(FeatureDiscovery.Feature.class)));
 
+        mInPipeline.close();
         mModel.onShutDown();
+        Coder.logKeyCacheStats();
         try {
             mDB.close();
         } catch (RuntimeException ex) {
@@ -208,8 +227,7 @@ public final class Control {
             String[] strings = config.getStringArray(Config.NET_STATUS_LIST);
             mClient.sendUserPresence(strings.length > 0 ? strings[0] : "");
             // send all pending messages
-            for (Chat chat: mModel.chats())
-                chat.getMessages().getPending().forEach(this::sendMessage);
+            this.flushOutbox();
 
             // send public key requests for Kontalk contacts with missing key
             for (Contact contact : mModel.contacts().getAll(false, false))
@@ -218,6 +236,8 @@ public final class Control {
             // TODO check current user avatar on server and upload if necessary
 
         } else if (status == Status.DISCONNECTED || status == Status.FAILED) {
+            if (mOutboxTimer != null)
+                mOutboxTimer.cancel();
             for (Contact contact : mModel.contacts().getAll(false, false))
                 contact.setOnlineStatus(Contact.Online.UNKNOWN);
         }
@@ -268,10 +288,13 @@ public final class Control {
     /**
      * All-in-one method for a new incoming message (except handling server
      * receipts): Create, save and process the message.
+     * Decryption and the rest is done asynchronously.
+     * @param onSaved run after the message was added and committed
      */
     public void onNewInMessage(MessageIDs ids,
             Optional<Date> serverDate,
-            MessageContent content) {
+            MessageContent content,
+            Runnable onSaved) {
         LOGGER.info("new incoming message, "+ids);
 
         Contact sender = this.getOrCreateContact(ids.jid).orElse(null);
@@ -280,12 +303,21 @@ public final class Control {
             return;
         }
 
-        // decrypt message now to get possible group data
+        // decrypt message first to get possible group data, not blocking the
+        // caller; messages of the same sender are added in order
         ProtoMessage protoMessage = new ProtoMessage(sender, content);
-        if (protoMessage.isEncrypted()) {
-            this.myKey().ifPresent(mk -> Coder.decryptMessage(mk, protoMessage));
-        }
+        mInPipeline.submit(protoMessage, this.myKey(), pm -> {
+            if (!this.addInMessage(pm, sender, content, ids, serverDate))
+                return;
+            // message must be persisted before confirming it
+            if (mDB.flush())
+                onSaved.run();
+        });
+    }
 
+    /** Return true if the message was added to a chat. */
+    private boolean addInMessage(ProtoMessage protoMessage, Contact sender, MessageContent content,
+            MessageIDs ids, Optional<Date> serverDate) {
         // NOTE: decryption must be successful to select group chat
         GroupMetaData groupData = content.getGroupData().orElse(null);
         Chat chat = groupData != null ?
@@ -293,13 +325,13 @@ public final class Control {
                 mModel.chats().getOrCreate(sender, ids.xmppThreadID);
         if (chat == null) {
             LOGGER.warning("no chat found, message lost: "+protoMessage);
-            return;
+            return false;
         }
 
         InMessage newMessage = mModel.createInMessage(
                 protoMessage, chat, ids, serverDate).orElse(null);
         if (newMessage == null)
-            return;
+            return false;
 
         GroupCommand com = newMessage.getContent().getGroupCommand().orElse(null);
         if (com != null) {
@@ -314,6 +346,7 @@ public final class Control {
         this.processContent(newMessage);
 
         mViewControl.changed(new ViewEvent.NewMessage(newMessage));
+        return true;
     }
 
     public void onMessageSent(MessageIDs ids) {
@@ -617,11 +650,8 @@ public final class Control {
     }
 
     private void setKey(Contact contact, PGPCoderKey key) {
-        for (Contact c: mModel.contacts().getAll(true, true)) {
-            if (key.fingerprint.equals(c.getFingerprint())) {
-                LOGGER.warning("key already set, setting for: "+contact+" set for: "+c);
-            }
-        }
+        mModel.contacts().getByFingerprint(key.fingerprint).ifPresent(c ->
+                LOGGER.warning("key already set, setting for: "+contact+" set for: "+c));
 
         contact.setKey(key.rawKey, key.fingerprint);
 
@@ -684,8 +714,44 @@ public final class Control {
         }
     }
 
+    /** Resend pending messages, oldest first and rate-limited. */
+    private void flushOutbox() {
+        if (mOutboxTimer != null)
+            mOutboxTimer.cancel();
+
+        Iterator<OutMessage> pending = mModel.chats().outbox().getAll().iterator();
+        if (!pending.hasNext())
+            return;
+
+        Timer timer = new Timer("Outbox Timer", true);
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                for (int i = 0; i < OUTBOX_BATCH_SIZE && pending.hasNext(); i++) {
+                    if (!mClient.isConnected()) {
+                        timer.cancel();
+                        return;
+                    }
+                    OutMessage message = pending.next();
+                    // status may have changed meanwhile
+                    if (message.getStatus() == KonMessage.Status.PENDING)
+                        Control.this.sendMessage(message);
+                }
+                if (!pending.hasNext())
+                    timer.cancel();
+            }
+        };
+        timer.schedule(task, 0, OUTBOX_BATCH_INTERVAL);
+        mOutboxTimer = timer;
+    }
+
     private Optional<OutMessage> findMessage(MessageIDs ids) {
-        // get chat by jid -> thread ID -> message id
+        // messages in memory, any chat
+        Optional<OutMessage> optIndexed = mModel.chats().getOutMessage(ids.xmppID);
+        if (optIndexed.isPresent())
+            return optIndexed;
+
+        // not in memory: get chat by jid -> thread ID -> message id
         Contact contact = mModel.contacts().get(ids.jid).orElse(null);
         if (contact != null) {
             Chat chat = mModel.chats().get(contact, ids.xmppThreadID).orElse(null);
@@ -700,11 +766,9 @@ public final class Control {
 
         // fallback: search in every chat
         LOGGER.info("fallback search, IDs: "+ids);
-        for (Chat chat: mModel.chats()) {
-            Optional<OutMessage> optM = chat.getMessages().getLast(ids.xmppID);
-            if (optM.isPresent())
-                return optM;
-        }
+        Optional<OutMessage> optM = mModel.chats().findOutMessage(ids.xmppID);
+        if (optM.isPresent())
+            return optM;
 
         LOGGER.warning("can't find message by IDs: "+ids);
         return Optional.empty();
@@ -0,0 +1,130 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.model.Contact;
+import org.kontalk.model.message.ProtoMessage;
+
+/**
+ * Processing of incoming messages off the packet listener thread.
+ *
+ * Encrypted messages are decrypted on a bounded pool, in parallel. The
+ * decrypted messages are then committed (added to model) by one thread, in
+ * order of arrival for each sender.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class InMessagePipeline {
+    private static final Logger LOGGER = Logger.getLogger(InMessagePipeline.class.getName());
+
+    private static final int QUEUE_SIZE = 64;
+    private static final int CLOSE_TIMEOUT = 10; // seconds
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final ThreadPoolExecutor mDecryptPool;
+    private final ExecutorService mCommitter;
+
+    // last commit for each sender, the next message is committed after it
+    private final Map<Contact, CompletableFuture<Void>> mLastCommits = new ConcurrentHashMap<>();
+
+    InMessagePipeline() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mDecryptPool = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                daemonThreads("Message Decryption"),
+                // queue is full: decrypt on calling thread, slows down the stream
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mCommitter = Executors.newSingleThreadExecutor(daemonThreads("Message Commit"));
+    }
+
+    /**
+     * Decrypt the message if needed and commit it after all previous
+     * messages of the same sender.
+     */
+    synchronized void submit(ProtoMessage protoMessage, Optional<PersonalKey> myKey,
+            Consumer<ProtoMessage> commit) {
+        CompletableFuture<ProtoMessage> decrypted;
+        if (protoMessage.isEncrypted() && myKey.isPresent()) {
+            decrypted = CompletableFuture.supplyAsync(() -> {
+                Coder.decryptMessage(myKey.get(), protoMessage);
+                return protoMessage;
+            }, mDecryptPool).exceptionally(ex -> {
+                LOGGER.log(Level.WARNING, "can't decrypt message", ex);
+                return protoMessage;
+            });
+        } else {
+            decrypted = CompletableFuture.completedFuture(protoMessage);
+        }
+
+        Contact sender = protoMessage.getContact();
+        CompletableFuture<Void> previous = mLastCommits.getOrDefault(sender, DONE);
+        CompletableFuture<Void> next = decrypted.thenAcceptBothAsync(previous, (message, v) -> {
+            try {
+                commit.accept(message);
+            } catch (RuntimeException ex) {
+                // never break the chain
+                LOGGER.log(Level.WARNING, "can't commit message", ex);
+            }
+        }, mCommitter);
+        mLastCommits.put(sender, next);
+        next.whenComplete((v, ex) -> mLastCommits.remove(sender, next));
+    }
+
+    /** Wait until all submitted messages are committed and stop. */
+    void close() {
+        CompletableFuture<?>[] pending = mLastCommits.values().toArray(new CompletableFuture<?>[0]);
+        try {
+            CompletableFuture.allOf(pending).get(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            LOGGER.log(Level.WARNING, "not all incoming messages committed", ex);
+        }
+        mDecryptPool.shutdown();
+        mCommitter.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -24,8 +24,11 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import com.alee.extended.panel.GroupPanel;
 import com.alee.extended.panel.GroupingType;
@@ -50,6 +53,9 @@ final class ChatListView extends ListView<Chat> {
 
     private final ChatList mChatList;
 
+    // chats with messages matching the current search, if searched in database
+    private Set<Integer> mSearchChatIDs = null;
+
     ChatListView(final View view, ChatList chatList) {
         super(view,
                 new FlyweightChatItem(),
@@ -83,6 +89,21 @@ final class ChatListView extends ListView<Chat> {
                 - Integer.compare(c1.getID(), c2.getID());
     }
 
+    /**
+     * Filter by search string and message search hits (message ID to chat
+     * ID), if available.
+     */
+    void filterItems(String search, Optional<Map<Integer, Integer>> messageHits) {
+        mSearchChatIDs = messageHits.map(hits -> new HashSet<>(hits.values())).orElse(null);
+        this.filterItems(search);
+    }
+
+    @Override
+    protected boolean matches(Chat chat, String search) {
+        return chat.contains(search) ||
+                (mSearchChatIDs != null && mSearchChatIDs.contains(chat.getID()));
+    }
+
     @Override
     protected void updateOnEDT(Object arg) {
         if (arg == null || arg == ChatList.ViewChange.MODIFIED)
@@ -22,6 +22,7 @@ import javax.swing.Icon;
 import javax.swing.JFileChooser;
 import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
+import java.awt.Adjustable;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
@@ -157,8 +158,23 @@ final class ChatView extends WebPanel implements ObserverTrait {
                 // scrolling down WHILE rendering until the final bottom is reached
                 if (e.getValueIsAdjusting())
                     mScrollDown = false;
-                if (mScrollDown)
+                if (mScrollDown) {
                     e.getAdjustable().setValue(e.getAdjustable().getMaximum());
+                    return;
+                }
+                // scrolled to top: load older messages
+                Adjustable bar = e.getAdjustable();
+                if (!e.getValueIsAdjusting() && bar.getValue() == 0 &&
+                        bar.getVisibleAmount() < bar.getMaximum()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            MessageList view = ChatView.this.currentMessageListOrNull();
+                            if (view != null)
+                                view.loadOlderMessages();
+                        }
+                    });
+                }
             }
         });
         mScrollPane.setViewport(new WebViewport() {
@@ -236,23 +252,30 @@ final class ChatView extends WebPanel implements ObserverTrait {
                 Optional.of(view.getChat());
     }
 
-    void filterCurrentChat(String searchText) {
+    void filterCurrentChat(String searchText, Optional<Map<Integer, Integer>> messageHits) {
         MessageList view = this.currentMessageListOrNull();
         if (view == null)
             return;
-        view.filterItems(searchText);
+        view.filterItems(searchText, messageHits);
     }
 
     void showChat(Chat chat) {
         Chat oldChat = this.getCurrentChat().orElse(null);
-        if (oldChat != null)
+        if (oldChat != null) {
             oldChat.deleteObserver(this);
+            if (oldChat != chat) {
+                mMessageListCache.get(oldChat).trimMessages();
+                oldChat.getMessages().setActive(false);
+            }
+        }
 
         chat.addObserver(this);
+        chat.getMessages().setActive(true);
 
         if (!mMessageListCache.containsKey(chat)) {
             MessageList newMessageList = new MessageList(mView, this, chat);
             chat.addObserver(newMessageList);
+            chat.getMessages().addObserver(newMessageList);
             mMessageListCache.put(chat, newMessageList);
         }
         // set to current chat
@@ -332,6 +355,7 @@ final class ChatView extends WebPanel implements ObserverTrait {
                 if (viewList != null) {
                     viewList.clearItems();
                     chat.deleteObserver(viewList);
+                    chat.getMessages().deleteObserver(viewList);
                 }
             }
         }
@@ -71,7 +71,7 @@ import org.kontalk.misc.Searchable;
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  * @param <V> the (model) value type in the list
  */
-abstract class ListView<V extends Observable & Searchable>
+abstract class ListView<V extends Searchable>
         extends WebTable implements ObserverTrait, Comparator<V> {
 
     private final Class mVClass;
@@ -132,7 +132,7 @@ abstract class ListView<V extends Observable & Searchable>
             public boolean include(Entry<? extends DefaultTableModel, ? extends Integer> entry) {
                 V v = (V) entry.getValue(0);
                 return (!filterSelected && v.equals(ListView.this.getSelectedValue().orElse(null)))
-                               || v.contains(mSearch);
+                               || ListView.this.matches(v, mSearch);
             }
         };
         mRowSorter.setRowFilter(rowFilter);
@@ -263,7 +263,8 @@ abstract class ListView<V extends Observable & Searchable>
         for (int i=0; i < mModel.getRowCount(); i++) {
             V value = (V) mModel.getValueAt(i, 0);
             if (!values.contains(value)) {
-                value.deleteObserver(this);
+                if (value instanceof Observable)
+                    ((Observable) value).deleteObserver(this);
                 mModel.removeRow(i);
                 i--;
             } else {
@@ -276,7 +277,9 @@ abstract class ListView<V extends Observable & Searchable>
         for (V v: values) {
             if (!oldValues.contains(v)) {
                 mModel.addRow(new Object[]{v});
-                v.addObserver(this);
+                // not all values are observable, changes are reported otherwise
+                if (v instanceof Observable)
+                    ((Observable) v).addObserver(this);
                 added = true;
             }
         }
@@ -344,6 +347,11 @@ abstract class ListView<V extends Observable & Searchable>
         mRowSorter.sort();
     }
 
+    /** Return if a value is shown for the current search string. */
+    protected boolean matches(V value, String search) {
+        return value.contains(search);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void updateOnEDT(Observable o, Object arg) {
@@ -362,6 +370,16 @@ abstract class ListView<V extends Observable & Searchable>
             mModel.fireTableRowsUpdated(from, to);
     }
 
+    /** Render the row containing the value specified again. */
+    void updateValueRendering(V value) {
+        for (int i=0; i < mModel.getRowCount(); i++) {
+            if (this.getValueAtModelIndex(i) == value) {
+                mModel.fireTableRowsUpdated(i, i);
+                return;
+            }
+        }
+    }
+
     abstract protected void updateOnEDT(Object arg);
 
     // WebLaf's tooltipmanager blocks mouse events, we need to invoke the tooltip manually.
@@ -52,6 +52,7 @@ import java.awt.event.ActionListener;
 import java.nio.file.Path;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
@@ -109,6 +110,10 @@ final class MessageList extends ListView<KonMessage> {
     private final Chat mChat;
 
     private Background mBackground = null;
+    // IDs of messages matching the current search, if searched in database
+    private Set<Integer> mSearchMessageIDs = null;
+    // if older messages are being loaded, only accessed on EDT
+    private boolean mLoadingOlder = false;
 
     MessageList(View view, ChatView chatView, Chat chat) {
         // render and editor item are equal (but not the same!)
@@ -147,6 +152,12 @@ final class MessageList extends ListView<KonMessage> {
 
     @Override
     protected void updateOnEDT(Object arg) {
+        if (arg instanceof KonMessage) {
+            // a message in the list changed, render only its row again
+            this.updateValueRendering((KonMessage) arg);
+            return;
+        }
+
         if (arg == null || arg == Chat.ViewChange.VIEW_SETTINGS) {
             this.setBackground(mChat.getViewSettings());
             if (mChatView.getCurrentChat().orElse(null) == mChat) {
@@ -183,6 +194,50 @@ final class MessageList extends ListView<KonMessage> {
         }
     }
 
+    /**
+     * Filter by search string and message search hits (message ID to chat
+     * ID), if available. Messages in memory also match by substring, the
+     * index only matches word prefixes.
+     */
+    void filterItems(String search, Optional<Map<Integer, Integer>> messageHits) {
+        mSearchMessageIDs = messageHits.map(Map::keySet).orElse(null);
+        this.filterItems(search);
+    }
+
+    @Override
+    protected boolean matches(KonMessage message, String search) {
+        return message.contains(search) ||
+                (mSearchMessageIDs != null && mSearchMessageIDs.contains(message.getID()));
+    }
+
+    /**
+     * Load older messages from history in background, the current top message
+     * stays in view.
+     */
+    void loadOlderMessages() {
+        if (mLoadingOlder || !mChat.getMessages().hasOlder())
+            return;
+
+        mLoadingOlder = true;
+        new Thread(() -> {
+            int loaded = mChat.getMessages().loadOlder();
+            SwingUtilities.invokeLater(() -> {
+                mLoadingOlder = false;
+                if (loaded == 0)
+                    return;
+
+                this.sync(mChat.getMessages().getAll());
+                this.scrollToRow(loaded);
+            });
+        }, "History Loader").start();
+    }
+
+    /** Remove older messages (from model and list) while chat is not shown. */
+    void trimMessages() {
+        mChat.getMessages().trim();
+        this.sync(mChat.getMessages().getAll());
+    }
+
     private void setBackground(Chat.ViewSettings s) {
         // simply overwrite
         mBackground = mChatView.createBGOrNull(s);
@@ -0,0 +1,156 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.view;
+
+import javax.swing.SwingUtilities;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Delivers model changes from other threads to the EDT in batches.
+ *
+ * Events are collected for one frame. Change notifications (enum values or
+ * null) are coalesced per observer, source and change and delivered in the
+ * order of their latest post; all other events (e.g. view events) are
+ * delivered one by one, in order.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ModelEventBus {
+    private static final Logger LOGGER = Logger.getLogger(ModelEventBus.class.getName());
+
+    private static final int FRAME = 16; // milliseconds
+
+    private static final ModelEventBus INSTANCE = new ModelEventBus();
+
+    private final Timer mTimer = new Timer("View Event Timer", true);
+
+    // guarded by this
+    private Map<Event, Event> mQueue = new LinkedHashMap<>();
+    private boolean mScheduled = false;
+
+    // metrics, written on EDT, logged on shutdown
+    private volatile long mLastLatency = 0;
+    private volatile long mMaxLatency = 0;
+    private volatile long mDispatched = 0;
+    private volatile long mCoalesced = 0;
+
+    private ModelEventBus() {}
+
+    static ModelEventBus getInstance() {
+        return INSTANCE;
+    }
+
+    void post(ObserverTrait observer, Observable source, Object arg) {
+        Event event = new Event(observer, source, arg);
+        synchronized (this) {
+            // a coalesced event moves to the position of the latest change
+            Event queued = mQueue.remove(event);
+            if (queued != null) {
+                mCoalesced++;
+                // keep first posting time for latency
+                event = queued;
+            }
+            mQueue.put(event, event);
+            if (mScheduled)
+                return;
+            mScheduled = true;
+        }
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                SwingUtilities.invokeLater(ModelEventBus.this::dispatch);
+            }
+        }, FRAME);
+    }
+
+    private void dispatch() {
+        Map<Event, Event> batch;
+        synchronized (this) {
+            batch = mQueue;
+            mQueue = new LinkedHashMap<>();
+            mScheduled = false;
+        }
+
+        long now = System.nanoTime();
+        long maxLatency = 0;
+        for (Event event : batch.keySet()) {
+            maxLatency = Math.max(maxLatency, now - event.posted);
+            event.observer.updateOnEDT(event.source, event.arg);
+        }
+
+        mLastLatency = TimeUnit.NANOSECONDS.toMillis(maxLatency);
+        mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+        mDispatched += batch.size();
+        LOGGER.finer("dispatched " + batch.size() + " events, latency " + mLastLatency + " ms");
+    }
+
+    /** Log delivery metrics, e.g. on shutdown. */
+    void logStats() {
+        int queued;
+        long coalesced;
+        synchronized (this) {
+            queued = mQueue.size();
+            coalesced = mCoalesced;
+        }
+        LOGGER.info("events dispatched: " + mDispatched + ", coalesced: " + coalesced
+                + ", queued: " + queued + ", latency last/max: " + mLastLatency
+                + "/" + mMaxLatency + " ms");
+    }
+
+    private static final class Event {
+        private final ObserverTrait observer;
+        private final Observable source;
+        private final Object arg;
+        private final boolean coalesce;
+        private final long posted = System.nanoTime();
+
+        private Event(ObserverTrait observer, Observable source, Object arg) {
+            this.observer = observer;
+            this.source = source;
+            this.arg = arg;
+            this.coalesce = arg == null || arg instanceof Enum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Event)) return false;
+            Event oEvent = (Event) o;
+            return coalesce && oEvent.coalesce &&
+                    observer == oEvent.observer &&
+                    source == oEvent.source &&
+                    Objects.equals(arg, oEvent.arg);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(observer);
+            hash = 31 * hash + System.identityHashCode(source);
+            hash = 31 * hash + Objects.hashCode(arg);
+            return hash;
+        }
+    }
+}
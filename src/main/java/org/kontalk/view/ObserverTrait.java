@@ -15,7 +15,8 @@ interface ObserverTrait extends Observer {
             this.updateOnEDT(o, arg);
             return;
         }
-        SwingUtilities.invokeLater(() -> ObserverTrait.this.updateOnEDT(o, arg));
+        // batched, equal changes are coalesced
+        ModelEventBus.getInstance().post(this, o, arg);
     }
 
     void updateOnEDT(Observable o, Object arg);
@@ -19,16 +19,21 @@
 package org.kontalk.view;
 
 import javax.swing.Icon;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Map;
+import java.util.Optional;
 
 import com.alee.extended.image.WebImage;
 import com.alee.laf.button.WebButton;
 import com.alee.laf.panel.WebPanel;
 import com.alee.laf.text.WebTextField;
+import org.kontalk.model.Model;
 import org.kontalk.util.Tr;
 
 /**
@@ -36,9 +41,21 @@ import org.kontalk.util.Tr;
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 final class SearchPanel extends WebPanel {
+    private static final int SEARCH_DELAY = 250; // milliseconds
+
     private final WebTextField mSearchField;
+    private final Timer mSearchTimer;
+    private final ContactListView mContactList;
+    private final ChatListView mChatList;
+    private final ChatView mChatView;
 
-    SearchPanel(final ListView[] lists, final ChatView chatView) {
+    SearchPanel(final Model model,
+            final ContactListView contactList,
+            final ChatListView chatList,
+            final ChatView chatView) {
+        mContactList = contactList;
+        mChatList = chatList;
+        mChatView = chatView;
         mSearchField = new WebTextField();
         mSearchField.setInputPrompt(Tr.tr("Search…"));
         mSearchField.getDocument().addDocumentListener(new DocumentListener() {
@@ -55,12 +72,29 @@ final class SearchPanel extends WebPanel {
                 this.filterList();
             }
             private void filterList() {
-                String searchText = mSearchField.getText().toLowerCase();
-                for (ListView list : lists)
-                    list.filterItems(searchText);
-                chatView.filterCurrentChat(searchText);
+                if (mSearchField.getText().isEmpty()) {
+                    mSearchTimer.stop();
+                    SearchPanel.this.filter("", Optional.empty());
+                    return;
+                }
+                mSearchTimer.restart();
             }
         });
+        // search when typing paused; messages are searched in database,
+        // including not loaded ones, off the EDT
+        mSearchTimer = new Timer(SEARCH_DELAY, e -> {
+            String searchText = mSearchField.getText().toLowerCase();
+            new Thread(() -> {
+                Optional<Map<Integer, Integer>> messageHits = model.searchMessages(searchText);
+                SwingUtilities.invokeLater(() -> {
+                    // outdated
+                    if (!searchText.equals(mSearchField.getText().toLowerCase()))
+                        return;
+                    this.filter(searchText, messageHits);
+                });
+            }, "Message Search").start();
+        });
+        mSearchTimer.setRepeats(false);
         mSearchField.setLeadingComponent(new WebImage(Utils.getIcon("ic_ui_search.png")));
         Icon clearIcon = Utils.getIcon("ic_ui_clear.png");
         WebButton clearSearchButton = new WebButton(clearIcon);
@@ -74,4 +108,10 @@ final class SearchPanel extends WebPanel {
         mSearchField.setTrailingComponent(clearSearchButton);
         this.add(mSearchField, BorderLayout.CENTER);
     }
+
+    private void filter(String searchText, Optional<Map<Integer, Integer>> messageHits) {
+        mContactList.filterItems(searchText);
+        mChatList.filterItems(searchText, messageHits);
+        mChatView.filterCurrentChat(searchText, messageHits);
+    }
 }
@@ -150,9 +150,8 @@ public final class View implements ObserverTrait {
         mChatListView = new ChatListView(this, mModel.chats());
 
         // search panel
-        SearchPanel searchPanel = new SearchPanel(
-                new ListView[]{mContactListView, mChatListView},
-                mChatView);
+        SearchPanel searchPanel = new SearchPanel(mModel,
+                mContactListView, mChatListView, mChatView);
         // status bar
         WebStatusBar statusBar = new WebStatusBar();
         mStatusBarLabel = new WebStatusLabel(" ");
@@ -305,6 +304,7 @@ public final class View implements ObserverTrait {
                 mTrayManager.removeTray();
                 mMainFrame.setVisible(false);
                 mMainFrame.dispose();
+                ModelEventBus.getInstance().logStats();
                 break;
             case FAILED:
                 mStatusBarLabel.setText(Tr.tr("Connecting failed"));
@@ -0,0 +1,138 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Random;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip through Encryptor and Decryptor.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class DecryptorTest {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static PGPKeyPair MY_KEY;
+    private static PGPKeyPair OTHER_KEY;
+
+    @BeforeClass
+    public static void setUpClass() throws PGPException {
+        MY_KEY = createKeyPair();
+        OTHER_KEY = createKeyPair();
+    }
+
+    /**
+     * Test of decryptAndVerify method, of class Decryptor; data larger than
+     * the copy buffer.
+     */
+    @Test
+    public void testRoundTrip() throws PGPException, IOException {
+        System.out.println("roundTrip");
+        byte[] plain = new byte[3 * BUFFER_SIZE + 17];
+        new Random(42).nextBytes(plain);
+
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                new ByteArrayInputStream(encrypt(plain, MY_KEY.getPublicKey())),
+                plainOut,
+                MY_KEY.getPrivateKey(),
+                Optional.of(MY_KEY.getPublicKey()));
+
+        assertTrue(result.errors.toString(), result.errors.isEmpty());
+        assertEquals(Coder.Signing.VERIFIED, result.signing);
+        assertArrayEquals(plain, plainOut.toByteArray());
+    }
+
+    /**
+     * Test of decryptAndVerify method, of class Decryptor; sender key not
+     * available.
+     */
+    @Test
+    public void testRoundTripUnverified() throws PGPException, IOException {
+        System.out.println("roundTripUnverified");
+        byte[] plain = "hello".getBytes("UTF-8");
+
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                new ByteArrayInputStream(encrypt(plain, MY_KEY.getPublicKey())),
+                plainOut,
+                MY_KEY.getPrivateKey(),
+                Optional.empty());
+
+        assertTrue(result.errors.toString(), result.errors.isEmpty());
+        assertEquals(Coder.Signing.SIGNED, result.signing);
+        assertArrayEquals(plain, plainOut.toByteArray());
+    }
+
+    /**
+     * Test of decryptAndVerify method, of class Decryptor; data encrypted for
+     * someone else.
+     */
+    @Test
+    public void testWrongKey() throws PGPException, IOException {
+        System.out.println("wrongKey");
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                new ByteArrayInputStream(encrypt(new byte[]{1, 2, 3}, OTHER_KEY.getPublicKey())),
+                plainOut,
+                MY_KEY.getPrivateKey(),
+                Optional.of(MY_KEY.getPublicKey()));
+
+        assertTrue(result.errors.contains(Coder.Error.INVALID_PRIVATE_KEY));
+        assertEquals(0, plainOut.size());
+    }
+
+    private static byte[] encrypt(byte[] plain, PGPPublicKey receiverKey)
+            throws PGPException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Encryptor.encryptAndSign(new ByteArrayInputStream(plain), out,
+                MY_KEY.getPrivateKey(), MY_KEY.getPublicKey().getAlgorithm(),
+                "me@kontalk.test",
+                Collections.singletonList(receiverKey),
+                BUFFER_SIZE);
+        return out.toByteArray();
+    }
+
+    private static PGPKeyPair createKeyPair() throws PGPException {
+        RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
+        generator.init(new RSAKeyGenerationParameters(
+                BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        return new BcPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                generator.generateKeyPair(), new Date());
+    }
+}
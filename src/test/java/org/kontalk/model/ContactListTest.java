@@ -0,0 +1,73 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.model;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kontalk.misc.JID;
+import org.kontalk.misc.KonException;
+import org.kontalk.model.chat.GroupChat;
+import org.kontalk.model.chat.GroupMetaData.KonGroupData;
+import org.kontalk.model.chat.ProtoMember;
+import org.kontalk.persistence.Config;
+import org.kontalk.persistence.Database;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class ContactListTest {
+    @ClassRule
+    public static TemporaryFolder TEMP_FOLDER = new TemporaryFolder();
+
+    private static Model MODEL;
+
+    @BeforeClass
+    public static void setUpClass() throws KonException {
+        Path appDir = TEMP_FOLDER.getRoot().toPath();
+        Config.initialize(appDir);
+        MODEL = Model.setup(new Database(appDir), appDir);
+    }
+
+    /**
+     * Test of getByFingerprint method, of class ContactList; key changed
+     * after the contact was removed from a group chat.
+     */
+    @Test
+    public void testGetByFingerprintAfterMemberRemoval() {
+        System.out.println("getByFingerprintAfterMemberRemoval");
+        ContactList contacts = MODEL.contacts();
+        Contact owner = contacts.create(JID.bare("fp_owner@kontalk.test"), "").get();
+        Contact member = contacts.create(JID.bare("fp_member@kontalk.test"), "").get();
+        GroupChat<?> chat = MODEL.chats().create(
+                Arrays.asList(new ProtoMember(owner), new ProtoMember(member)),
+                new KonGroupData(owner.getJID(), "fp_group"));
+
+        chat.applyGroupChanges(Collections.emptyList(),
+                Collections.singletonList(new ProtoMember(member)), "");
+        member.setKey(new byte[]{1, 2, 3}, "A1B2C3");
+
+        assertEquals(member, contacts.getByFingerprint("a1b2c3").orElse(null));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.model.message;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Layout of the in-memory message representation, checked by reflection.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class KonMessageFootprintTest {
+
+    // fields of KonMessage and OutMessage/InMessage
+    private static final int MAX_MESSAGE_FIELDS = 12;
+
+    /**
+     * Messages are not observable, changes are reported through the chat.
+     */
+    @Test
+    public void testNotObservable() {
+        System.out.println("notObservable");
+        assertFalse(Observable.class.isAssignableFrom(KonMessage.class));
+        assertFalse(Observable.class.isAssignableFrom(CoderStatus.class));
+    }
+
+    /**
+     * Number and types of instance fields of messages.
+     */
+    @Test
+    public void testMessageFields() {
+        System.out.println("messageFields");
+        for (Class<?> c : new Class<?>[]{OutMessage.class, InMessage.class}) {
+            List<Field> fields = instanceFields(c);
+            assertTrue(c.getSimpleName() + ": " + fields,
+                    fields.size() <= MAX_MESSAGE_FIELDS);
+            for (Field field : fields)
+                // dates are saved as epoch milliseconds
+                assertFalse(field.toString(), Date.class.isAssignableFrom(field.getType()));
+        }
+    }
+
+    /**
+     * Coder status is packed into one int.
+     */
+    @Test
+    public void testCoderStatusFields() {
+        System.out.println("coderStatusFields");
+        List<Field> fields = instanceFields(CoderStatus.class);
+        assertEquals(1, fields.size());
+        assertSame(int.class, fields.get(0).getType());
+    }
+
+    /**
+     * Test of compact method, of class KonMessage.
+     */
+    @Test
+    public void testCompactTransmissions() {
+        System.out.println("compactTransmissions");
+        assertSame(Collections.emptySet(), KonMessage.compact(new HashSet<>()));
+
+        Set<Transmission> one = KonMessage.compact(new HashSet<>(Collections.singleton(null)));
+        assertEquals(1, one.size());
+        assertFalse(one instanceof HashSet);
+    }
+
+    private static List<Field> instanceFields(Class<?> c) {
+        List<Field> fields = new ArrayList<>();
+        for (; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic())
+                    fields.add(field);
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.model.message;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.kontalk.misc.JID;
+import org.kontalk.model.message.MessageContent.GroupCommand;
+import org.kontalk.model.message.MessageContent.InAttachment;
+import org.kontalk.model.message.MessageContent.OutAttachment;
+import org.kontalk.model.message.MessageContent.Preview;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class MessageContentTest {
+
+    /**
+     * Test of toBytes and fromBytes methods, of class MessageContent.
+     */
+    @Test
+    public void testBinaryRoundTrip() {
+        System.out.println("binaryRoundTrip");
+        OutAttachment att = new OutAttachment(Paths.get("/tmp/file.png"), "image/png");
+        att.setUploaded(URI.create("https://kontalk.test/file"), "image/png", 42);
+        MessageContent content = new MessageContent.Builder()
+                .body("hello ✓")
+                .attachment(att)
+                .preview(new Preview(new byte[]{1, 2, 3}, "image/jpeg"))
+                .groupCommand(GroupCommand.set(Collections.emptyList(),
+                        Arrays.asList(JID.bare("a@kontalk.test"), JID.bare("b@kontalk.test")),
+                        Collections.singletonList(JID.bare("c@kontalk.test")),
+                        "subject"))
+                .build();
+
+        byte[] data = content.toBytes();
+        assertFalse(ContentCodec.isLegacy(data));
+        MessageContent result = MessageContent.fromBytes(data);
+
+        assertEquals("hello ✓", result.getPlainText());
+        assertEquals("", result.getEncryptedContent());
+
+        OutAttachment resultAtt = result.getOutAttachment().get();
+        assertEquals(Paths.get("/tmp/file.png"), resultAtt.getFilePath());
+        assertEquals(URI.create("https://kontalk.test/file"), resultAtt.getURL());
+        assertEquals("image/png", resultAtt.getMimeType());
+        assertEquals(42, resultAtt.getLength());
+
+        // preview data is saved as file
+        assertEquals("image/jpeg", result.getPreview().get().getMimeType());
+
+        GroupCommand command = result.getGroupCommand().get();
+        assertEquals(GroupCommand.OP.SET, command.getOperation());
+        assertEquals("subject", command.getSubject());
+        assertEquals(Arrays.asList(JID.bare("a@kontalk.test"), JID.bare("b@kontalk.test")),
+                command.getAdded());
+        assertEquals(Collections.singletonList(JID.bare("c@kontalk.test")),
+                command.getRemoved());
+    }
+
+    /**
+     * Test of toBytes and fromBytes methods, of class MessageContent; incoming
+     * content with decrypted content.
+     */
+    @Test
+    public void testBinaryRoundTripDecrypted() {
+        System.out.println("binaryRoundTripDecrypted");
+        InAttachment att = new InAttachment(URI.create("https://kontalk.test/in"));
+        att.setFile("in.dat", true);
+        MessageContent decrypted = new MessageContent.Builder()
+                .body("secret").attachment(att).build();
+        MessageContent content = new MessageContent.Builder().encrypted("ENCRYPTED").build();
+        content.setDecryptedContent(decrypted);
+
+        MessageContent result = MessageContent.fromBytes(content.toBytes());
+
+        assertEquals("", result.getPlainText());
+        assertEquals("", result.getEncryptedContent());
+        assertEquals("secret", result.getText());
+        InAttachment resultAtt = result.getInAttachment().get();
+        assertEquals(URI.create("https://kontalk.test/in"), resultAtt.getURL());
+        assertEquals("in.dat", resultAtt.getFilename());
+        assertTrue(resultAtt.isEncrypted());
+    }
+
+    /**
+     * Test of fromBytes method, of class MessageContent; content saved as
+     * JSON by previous versions.
+     */
+    @Test
+    public void testLegacyJSON() {
+        System.out.println("legacyJSON");
+        String json = "{\"plain_text\":\"hello\","
+                + "\"encrypted_content\":\"ENCRYPTED\","
+                + "\"attachment\":\"{\\\"url\\\":\\\"https:\\\\\\/\\\\\\/kontalk.test\\\\\\/file\\\","
+                + "\\\"mime_type\\\":\\\"image\\\\\\/png\\\",\\\"length\\\":42,"
+                + "\\\"file_name\\\":\\\"\\\\\\/tmp\\\\\\/file.png\\\"}\","
+                + "\"preview\":\"{\\\"mime_type\\\":\\\"image\\\\\\/jpeg\\\"}\","
+                + "\"group_command\":\"{\\\"op\\\":0,\\\"subj\\\":\\\"subject\\\","
+                + "\\\"added\\\":[\\\"a@kontalk.test\\\"],\\\"removed\\\":[]}\"}";
+
+        MessageContent result = MessageContent.fromBytes(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("hello", result.getPlainText());
+        assertEquals("ENCRYPTED", result.getEncryptedContent());
+
+        OutAttachment att = result.getOutAttachment().get();
+        assertEquals(Paths.get("/tmp/file.png"), att.getFilePath());
+        assertEquals(URI.create("https://kontalk.test/file"), att.getURL());
+        assertEquals("image/png", att.getMimeType());
+        assertEquals(42, att.getLength());
+
+        assertEquals("image/jpeg", result.getPreview().get().getMimeType());
+
+        GroupCommand command = result.getGroupCommand().get();
+        assertEquals(GroupCommand.OP.CREATE, command.getOperation());
+        assertEquals("subject", command.getSubject());
+        assertEquals(Collections.singletonList(JID.bare("a@kontalk.test")), command.getAdded());
+        assertTrue(command.getRemoved().isEmpty());
+    }
+
+    /**
+     * Test of fromBytes method, of class MessageContent; broken binary data.
+     */
+    @Test
+    public void testTruncatedBinary() {
+        System.out.println("truncatedBinary");
+        byte[] data = MessageContent.plainText("hello").toBytes();
+
+        MessageContent result = MessageContent.fromBytes(Arrays.copyOf(data, data.length - 1));
+
+        assertTrue(result.isEmpty());
+    }
+}